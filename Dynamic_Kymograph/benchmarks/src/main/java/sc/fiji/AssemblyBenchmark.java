@@ -0,0 +1,61 @@
+package sc.fiji;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * AssemblyBenchmark.java
+ * Purpose: measures assembling a whole kymograph of a GRAY16 stack, as "Make kymograph" does, with one key frame every 100 frames.
+ * Assembled serially, so the numbers do not depend on the number of processors. Counted in milliseconds per kymograph.
+ *
+ * @version v1.6
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class AssemblyBenchmark {
+	
+	static final int LINE_WIDTH = 5;
+	
+	@Param({"1000", "10000", "50000"})
+	public int numFrames;
+	
+	private KymographSampler sampler;
+	private KeyFrames keyFrames;
+	
+	@Setup
+	public void setup() {
+		
+		sampler = new KymographSampler(BenchmarkData.createStack(ImagePlus.GRAY16, numFrames), ImagePlus.GRAY16, null);
+		keyFrames = BenchmarkData.createKeyFrames(numFrames / 100, numFrames);
+	}
+	
+	/**
+	 * @return the kymograph
+	 */
+	@Benchmark
+	public ImageStack assembleKymographInterpolate() {
+		
+		KymographAssembler assembler = new KymographAssembler(sampler, keyFrames, null);
+		assembler.setLineWidth(LINE_WIDTH);
+		
+		return assembler.assemble();
+	}
+}
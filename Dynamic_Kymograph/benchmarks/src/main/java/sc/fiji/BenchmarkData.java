@@ -0,0 +1,196 @@
+package sc.fiji;
+
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * BenchmarkData.java
+ * Purpose: the synthetic inputs of the benchmarks: stacks of random frames, and key frames for a filament drifting across them.
+ * Every input is generated from a fixed seed, so each run measures the same work.
+ * Long stacks (up to 50,000 frames) repeat a few distinct frames, so they do not need gigabytes of memory.
+ *
+ * @version v1.6
+ */
+final class BenchmarkData {
+	
+	static final long SEED = 42;
+	static final int WIDTH = 256;
+	static final int HEIGHT = 256;
+	static final int DISTINCT_FRAMES = 32;	//frames generated for a stack. Longer stacks repeat them
+	
+	private BenchmarkData() {}
+	
+	/**
+	 * @param name GRAY8, GRAY16, GRAY32 or RGB
+	 *
+	 * @return the ImagePlus image type
+	 */
+	static int parseImageType(String name) {
+		
+		if(name.equals("GRAY8")) {
+			return ImagePlus.GRAY8;
+		}
+		if(name.equals("GRAY16")) {
+			return ImagePlus.GRAY16;
+		}
+		if(name.equals("GRAY32")) {
+			return ImagePlus.GRAY32;
+		}
+		if(name.equals("RGB")) {
+			return ImagePlus.COLOR_RGB;
+		}
+		
+		throw new IllegalArgumentException("BenchmarkData error: unknown image type " + name);
+	}
+	
+	/**
+	 * Builds a stack of random frames. Stacks longer than DISTINCT_FRAMES repeat their frames (see "CyclicStack").
+	 *
+	 * @param imageType GRAY8, GRAY16, GRAY32 or COLOR_RGB
+	 * @param numFrames the number of frames
+	 *
+	 * @return the stack
+	 */
+	static ImageStack createStack(int imageType, int numFrames) {
+		
+		Random random = new Random(SEED);
+		ImageProcessor[] frames = new ImageProcessor[Math.min(numFrames, DISTINCT_FRAMES)];
+		
+		for(int frame = 0; frame < frames.length; frame++) {
+			frames[frame] = createFrame(imageType, random);
+		}
+		
+		return new CyclicStack(frames, numFrames);
+	}
+	
+	/**
+	 * Builds a frame of random pixels.
+	 *
+	 * @param imageType GRAY8, GRAY16, GRAY32 or COLOR_RGB
+	 * @param random the random numbers
+	 *
+	 * @return the frame
+	 */
+	static ImageProcessor createFrame(int imageType, Random random) {
+		
+		int size = WIDTH * HEIGHT;
+		
+		switch(imageType) {
+			case ImagePlus.GRAY8:
+				byte[] bytes = new byte[size];
+				random.nextBytes(bytes);
+				return new ByteProcessor(WIDTH, HEIGHT, bytes);
+			case ImagePlus.GRAY16:
+				short[] shorts = new short[size];
+				for(int i = 0; i < size; i++) {
+					shorts[i] = (short) random.nextInt(4096);	//12-bit camera
+				}
+				return new ShortProcessor(WIDTH, HEIGHT, shorts, null);
+			case ImagePlus.GRAY32:
+				float[] floats = new float[size];
+				for(int i = 0; i < size; i++) {
+					floats[i] = random.nextFloat();
+				}
+				return new FloatProcessor(WIDTH, HEIGHT, floats, null);
+			default:
+				int[] ints = new int[size];
+				for(int i = 0; i < size; i++) {
+					ints[i] = random.nextInt() & 0xffffff;
+				}
+				return new ColorProcessor(WIDTH, HEIGHT, ints);
+		}
+	}
+	
+	/**
+	 * Builds key frames for a filament drifting across the frame: the same five-vertex polyline, jittered on every key frame.
+	 *
+	 * @param keyFrameCount the number of key frames, spread evenly over the stack
+	 * @param numFrames the number of frames in the stack
+	 *
+	 * @return the key frames
+	 */
+	static KeyFrames createKeyFrames(int keyFrameCount, int numFrames) {
+		
+		Random random = new Random(SEED);
+		KeyFrames keyFrames = new KeyFrames();
+		keyFrameCount = Math.max(2, Math.min(keyFrameCount, numFrames));
+		
+		for(int k = 0; k < keyFrameCount; k++) {
+			int frame = 1 + (int) ((long) k * (numFrames - 1) / (keyFrameCount - 1));
+			keyFrames.addKeyFrame(new KeyFrame(frame, createPolyline(random, 4)));
+		}
+		
+		keyFrames.updateAnchor(2);
+		
+		return keyFrames;
+	}
+	
+	/**
+	 * Builds a five-vertex polyline running diagonally across the frame, about 300 pixels long.
+	 *
+	 * @param random the random numbers
+	 * @param jitter the largest random offset of each vertex, in pixels
+	 *
+	 * @return the polyline
+	 */
+	static Roi createPolyline(Random random, float jitter) {
+		
+		float[] x = {20, 70, 125, 180, 230};
+		float[] y = {30, 90, 120, 170, 225};
+		
+		for(int i = 0; i < x.length; i++) {
+			x[i] += (random.nextFloat() * 2 - 1) * jitter;
+			y[i] += (random.nextFloat() * 2 - 1) * jitter;
+		}
+		
+		return new PolygonRoi(x, y, x.length, Roi.POLYLINE);
+	}
+	
+	/**
+	 * A stack that repeats a few frames, so long stacks can be sampled without holding every frame in memory.
+	 */
+	static class CyclicStack extends ImageStack {
+		
+		private ImageProcessor[] frames;
+		private int size;
+		
+		CyclicStack(ImageProcessor[] frames, int size) {
+			
+			super(frames[0].getWidth(), frames[0].getHeight());
+			
+			this.frames = frames;
+			this.size = size;
+		}
+		
+		@Override
+		public int getSize() {
+			return size;
+		}
+		
+		@Override
+		public int size() {
+			return size;
+		}
+		
+		@Override
+		public ImageProcessor getProcessor(int n) {
+			return frames[(n - 1) % frames.length];
+		}
+		
+		@Override
+		public Object getPixels(int n) {
+			return getProcessor(n).getPixels();
+		}
+	}
+}
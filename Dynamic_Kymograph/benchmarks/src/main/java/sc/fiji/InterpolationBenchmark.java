@@ -0,0 +1,83 @@
+package sc.fiji;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * InterpolationBenchmark.java
+ * Purpose: measures interpolating key frames, one frame at a time (as "interpolateRoi" did) and over every frame of the stack (as "fillRoiArrayInterpolate" does).
+ * Both are counted in frames per second.
+ *
+ * @version v1.6
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InterpolationBenchmark {
+	
+	static final int INTERPOLATED_FRAMES = 10000;	//frames in the stack
+	
+	@Param({"10", "100", "1000"})
+	public int keyFrameCount;
+	
+	@Param({"linear", "cubic"})
+	public String interpolation;
+	
+	private KeyFrames keyFrames;
+	private InterpolatedFrames single;
+	private InterpolatedFrames all;
+	private int frame;
+	
+	@Setup
+	public void setup() {
+		
+		keyFrames = BenchmarkData.createKeyFrames(keyFrameCount, INTERPOLATED_FRAMES);
+		keyFrames.setInterpolation(KeyFrames.parseInterpolation(interpolation, KeyFrames.LINEAR));
+		
+		single = new InterpolatedFrames(1);
+		all = new InterpolatedFrames(INTERPOLATED_FRAMES + 1);
+		frame = 0;
+	}
+	
+	/**
+	 * Interpolates the next frame of the stack, so every span between key frames is measured in turn.
+	 *
+	 * @return the number of vertices of the interpolated ROI
+	 */
+	@Benchmark
+	public int interpolateRoi() {
+		
+		frame = frame % INTERPOLATED_FRAMES + 1;
+		single.fill(keyFrames, frame, frame, 0);
+		
+		return single.getNPoints(0);
+	}
+	
+	/**
+	 * @param blackhole consumes the interpolated frames, so the work is not dropped
+	 */
+	@Benchmark
+	@OperationsPerInvocation(INTERPOLATED_FRAMES)
+	public void fillRoiArrayInterpolate(Blackhole blackhole) {
+		
+		all.fill(keyFrames, 1, INTERPOLATED_FRAMES, 1);
+		blackhole.consume(all);
+	}
+}
@@ -0,0 +1,81 @@
+package sc.fiji;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import ij.gui.Roi;
+
+import ij.process.ImageProcessor;
+
+/**
+ * SamplingBenchmark.java
+ * Purpose: measures sampling one frame of each image type along a five-vertex polyline, about 300 pixels long.
+ *
+ * @version v1.6
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SamplingBenchmark {
+	
+	@Param({"GRAY8", "GRAY16", "GRAY32", "RGB"})
+	public String imageType;
+	
+	private KymographSampler sampler;
+	private ImageProcessor ip;
+	private Roi roi;
+	
+	@Setup
+	public void setup() {
+		
+		int type = BenchmarkData.parseImageType(imageType);
+		
+		sampler = new KymographSampler(BenchmarkData.createStack(type, 1), type, null);
+		ip = BenchmarkData.createFrame(type, new Random(BenchmarkData.SEED));
+		roi = BenchmarkData.createPolyline(new Random(BenchmarkData.SEED), 0);
+	}
+	
+	/**
+	 * @return the pixels along the polyline, one pixel wide
+	 */
+	@Benchmark
+	public double[] getPixelsPolyline() {
+		return sampler.getPixelsPolyline(roi, ip, 0);
+	}
+	
+	/**
+	 * The line widths "averageWidth" is measured with.
+	 */
+	@State(Scope.Thread)
+	public static class LineWidth {
+		
+		@Param({"1", "5", "9", "15"})
+		public int lineWidth;
+	}
+	
+	/**
+	 * @param width the line width
+	 * @param blackhole consumes the row, so the work is not dropped
+	 */
+	@Benchmark
+	public void averageWidth(LineWidth width, Blackhole blackhole) {
+		blackhole.consume(sampler.averageWidth(ip, roi, width.lineWidth));
+	}
+}
@@ -9,9 +9,9 @@ import java.awt.Label;
 import java.awt.Panel;
 import java.awt.Point;
 import java.awt.Polygon;
-import java.awt.Rectangle;
 import java.awt.Button;
 import java.awt.Color;
+import java.awt.EventQueue;
 import java.awt.FlowLayout;
 
 import java.awt.event.ActionEvent;
@@ -22,17 +22,25 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.WindowEvent;
 
+import java.io.File;
+import java.io.IOException;
+
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 import java.util.Random;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImageListener;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.WindowManager;
 
 import ij.gui.ImageCanvas;
@@ -43,21 +51,19 @@ import ij.gui.Roi;
 import ij.gui.RoiListener;
 import ij.gui.TextRoi;
 
+import ij.io.OpenDialog;
+import ij.io.SaveDialog;
+
 import ij.measure.Calibration;
 
 import ij.plugin.PlugIn;
 import ij.plugin.frame.PlugInFrame;
 
-import ij.process.ByteProcessor;
-import ij.process.ColorProcessor;
 import ij.process.FloatPolygon;
-import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
 
 /**
  * Dynamic_Kymograph.java
- * Purpose: imageJ plugin to generate kymographs using key framing and linear interpolation
+ * Purpose: imageJ plugin to generate kymographs using key framing and linear or cubic interpolation
  *
  * @author Rudy Zhou
  * @version v1.5
@@ -76,20 +82,61 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 	private Calibration calibration;
 	private ImageCanvas canvas;
 	private int imageType;
+	private KymographSampler sampler;
 	
 	//for Saved ROIs window
 	private ImagePlus savedRois;
 	private Overlay overlayRois;
 	
-	//maintains the "edited" polylines that the user inputs
-	private HashMap<Integer, Roi> recordedRois = new HashMap<Integer, Roi>();
-	private Roi[] interpolatedRois;
+	//maintains the "edited" polylines (key frames) that the user inputs, sorted by frame
+	private KeyFrames keyFrames = new KeyFrames();
+	private InterpolatedFrames interpolatedFrames;	//vertices of the interpolated polyline on every frame. ROIs are only built for display
+	
+	//lazy mode: interpolatedFrames is not kept, and each frame's ROI is interpolated when asked for. Recently viewed frames are kept in roiCache
+	private boolean lazyInterpolation;
+	private LinkedHashMap<Integer, Roi> roiCache;
+	static final int LAZY_INTERPOLATION_FRAMES = 10000; //stacks with more frames than this use lazy mode by default
+	static final int ROI_CACHE_SIZE = 64;
+	
+	//ROI events are coalesced: key frames are recorded on the event thread, and interpolated on the interpolator thread once per burst of edits (a drag fires hundreds of events)
+	private ScheduledExecutorService interpolator;
+	private final Object interpolationLock = new Object();	//guards keyFrames and the interpolated ROIs, which both threads use
+	private int pendingFirstEdit = Integer.MAX_VALUE;	//first and last frames edited since the last interpolation. Guarded by interpolationLock
+	private int pendingLastEdit = 0;
+	private boolean interpolationScheduled = false;
+	static final int COALESCE_DELAY = 20;	//ms after the first edit of a burst before interpolating
+	
+	//reentrancy guard: set while the plugin changes the ROI of the image itself, so the ROI events it fires are not recorded as key frames.
+	//Only set on the event thread, where the ROI events are received, so an update from another thread cannot drop an edit
+	private boolean ignoreRoiEvents = false;
 	
 	//anchor point properties
 	private int anchorID;
 	private boolean anchorExists;
 	static final int ANCHOR_KEY = 17; //set to "ctrl" key
 	
+	//number of threads used to assemble the kymograph. 1 assembles serially, one frame at a time
+	private int numThreads;
+	
+	//streaming mode: frames are read in order by a background thread a few frames ahead of sampling
+	private boolean streaming;
+	
+	//key frames of every ROI saved with "Save current ROI", numbered like the ROIs in the Saved ROIs window
+	private List<KeyFrames> savedTracks;
+	
+	//sampled rows of the last kymographs, so re-running with unchanged ROIs (or only a new anchor point) only re-aligns them. null in lazy mode.
+	//Cleared when the pixels of the image are edited, detected as an update of the image that is not a change of slice (see "imageUpdated")
+	private RowCache rowCache;
+	
+	//live kymograph preview, updated as the key frames are edited. null until "Live preview" is pressed
+	private KymographPreview preview;
+	
+	//kymographs being assembled in the background. null until "Make kymograph" or "Make all kymographs" is pressed
+	private KymographTask task;
+	
+	//line width last entered by the user, saved with the session
+	private int lastLineWidth = 1;
+	
 	/**
 	 * Runs the plugin. Initializes UI windows and begins listeners for user input.
 	 *
@@ -104,8 +151,13 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 		window = image.getWindow();
 		canvas = image.getCanvas();
 		calibration = image.getCalibration();
-		numFrames = image.getImageStackSize();
 		imageType = image.getType();
+		sampler = KymographAssembler.createSampler(image);
+		numFrames = sampler.getNumFrames();	//time points of a hyperstack
+		
+		if(sampler.getNumChannels() > 1 || sampler.getNumSlices() > 1) {
+			KymographLog.info("Hyperstack: %d channels, %d z-slices (max projected), %d frames", sampler.getNumChannels(), sampler.getNumSlices(), numFrames);
+		}
 
 		//initialize Saved ROIs window as copy of first frame of image. Set up the overlay, which is used to store and display multiple ROIs
 		savedRois = new ImagePlus("Saved ROIS",  image.getStack().getProcessor(1));
@@ -119,11 +171,34 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 		savedRois.setOverlay(overlayRois);
 		
 		//indexed by frames 1 through numFrames
-		interpolatedRois = new Roi[numFrames + 1];
+		lazyInterpolation = numFrames > LAZY_INTERPOLATION_FRAMES;
+		interpolatedFrames = lazyInterpolation ? null : new InterpolatedFrames(numFrames + 1);
+		rowCache = lazyInterpolation ? null : new RowCache(sampler);
+		roiCache = new LinkedHashMap<Integer, Roi>(ROI_CACHE_SIZE, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Roi> eldest) {
+				return size() > ROI_CACHE_SIZE;
+			}
+		};
+		interpolator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Key frame interpolation");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 		
 		anchorID = 0;
 		anchorExists = false;
 		
+		keyFrames.setInterpolation(KeyFrames.parseInterpolation(Prefs.get(KeyFrames.PREF_KEY, "linear"), KeyFrames.LINEAR));
+		
+		savedTracks = new ArrayList<KeyFrames>();
+		
+		numThreads = Prefs.getThreads();	//defaults to the thread count set in Edit > Options > Memory & Threads
+		streaming = image.getStack().isVirtual() && sampler.readsWholeFrames();
+		
 		removeListeners();
 		addListeners();
 	}
@@ -149,7 +224,7 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 		
 		frame.setVisible(true);
 		frame.setTitle("Dynamic Kymograph");
-		frame.setSize(500, 100);
+		frame.setSize(700, 160);
 		
 		Panel mainPanel = new Panel();
 		
@@ -167,10 +242,30 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 		saveCurrentRoi.addActionListener(this);
 		mainPanel.add(saveCurrentRoi);
 		
+		Button allKymographsButton = new Button("Make all kymographs");
+		allKymographsButton.addActionListener(this);
+		mainPanel.add(allKymographsButton);
+		
+		Button cancelButton = new Button("Cancel");
+		cancelButton.addActionListener(this);
+		mainPanel.add(cancelButton);
+		
+		Button previewButton = new Button("Live preview");
+		previewButton.addActionListener(this);
+		mainPanel.add(previewButton);
+		
 		Button resetKeyFramesButton = new Button("Reset key frames");
 		resetKeyFramesButton.addActionListener(this);
 		mainPanel.add(resetKeyFramesButton);
 		
+		Button saveSessionButton = new Button("Save session");
+		saveSessionButton.addActionListener(this);
+		mainPanel.add(saveSessionButton);
+		
+		Button loadSessionButton = new Button("Load session");
+		loadSessionButton.addActionListener(this);
+		mainPanel.add(loadSessionButton);
+		
 		anchorLabel = new Label("Anchor not set");
 		anchorLabel.setSize(anchorLabel.getPreferredSize());
 		mainPanel.add(anchorLabel);
@@ -213,12 +308,40 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 	 */
 	private void makeKymograph() {
 		
-		if(recordedRois.isEmpty()) {
+		if(keyFrames.isEmpty()) {
 			IJ.error("No ROIs recorded");
 		}
 		else {
 			assembleKymographInterpolate();
-			IJ.log("Making Kymograph");	
+			KymographLog.info("Making Kymograph");	
+		}
+	}
+	
+	/**
+	 * Generates a kymograph for every saved ROI, in one pass over the stack.
+	 *
+	 * @return void.
+	 */
+	private void makeAllKymographs() {
+		
+		if(savedTracks.isEmpty()) {
+			IJ.error("No ROIs saved");
+		}
+		else {
+			assembleAllKymographs();
+			KymographLog.info("Making %d kymographs", savedTracks.size());
+		}
+	}
+	
+	/**
+	 * Cancels the kymographs being assembled, if any.
+	 *
+	 * @return void.
+	 */
+	private void cancelKymograph() {
+		
+		if(task != null && task.isRunning()) {
+			task.cancel();
 		}
 	}
 	
@@ -233,10 +356,18 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 				
 		image.deleteRoi();
 		
-		recordedRois.clear();
-		interpolatedRois = new Roi[numFrames + 1];
+		synchronized(interpolationLock) {
+			keyFrames.clear();
+			if(interpolatedFrames != null) {
+				interpolatedFrames.clear();
+			}
+			roiCache.clear();
+		}
+		if(rowCache != null) {
+			rowCache.clear();
+		}
 		
-		IJ.log("Reset key frames");
+		KymographLog.info("Reset key frames");
 	}
 	
 	/**
@@ -270,18 +401,20 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 	}
 	
 	/**
-	 * Draws the current interpolated ROI (on the first frame) on the Saved ROIs window in a random color.
+	 * Draws the current interpolated ROI (on the first frame) on the Saved ROIs window in a random color, and keeps a copy of its key frames for "Make all kymographs".
 	 * Can cycle through random colors by repeatedly calling method.
 	 *
 	 * @return void.
 	 */
 	private void saveRoi() {
 		
-		if (interpolatedRois[1] != null) {
+		Roi firstRoi = getInterpolatedRoi(1);
+		
+		if (firstRoi != null) {
 			
-			Roi currentRoi = roiCopy((PolygonRoi) interpolatedRois[1]);
+			Roi currentRoi = roiCopy((PolygonRoi) firstRoi);
 			
-			if(overlayRois.contains(currentRoi)) { //allows user to cycle through random colors by repeatedly calling saveRoi
+			if(overlayRois.contains(currentRoi)) {
 				
 				int indexToReplace = 0;
 				
@@ -289,36 +422,161 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 					indexToReplace++;
 				}
 				
-				//remove both the ROI and its associated number from the overlay
-				overlayRois.remove(indexToReplace + 1);
-				overlayRois.remove(indexToReplace);
+				savedTracks.remove(indexToReplace / 2);	//the ROI is renumbered as the last one, so its key frames move to the end too
 			}
 			
-			Polygon currentRoiPoly = currentRoi.getPolygon();
-			int x = currentRoiPoly.xpoints[0];
-			int y = currentRoiPoly.ypoints[0];
-			
-			//create number by the first vertex of the ROI
-			TextRoi number = new TextRoi(x, y, Integer.toString(overlayRois.size()/2 + 1));
-			
-			Random rand = new Random();
-			Color randomColor = new Color(rand.nextFloat(), rand.nextFloat(), rand.nextFloat());
+			savedTracks.add(keyFrames.copy());
+			drawSavedRoi(currentRoi);
+		}
+		else {
+			IJ.error("saveRoi error: no ROI selected");
+		}
+
+	}
+	
+	/**
+	 * Helper method for "saveRoi" and "loadSession". Draws a ROI and its number on the Saved ROIs window in a random color.
+	 * A ROI that is already drawn is redrawn as the last one, in a new color.
+	 * 
+	 * @param currentRoi the ROI to draw
+	 */
+	private void drawSavedRoi(Roi currentRoi) {
+		
+		if(overlayRois.contains(currentRoi)) { //allows user to cycle through random colors by repeatedly calling saveRoi
 			
-			number.setStrokeColor(randomColor);
-			currentRoi.setStrokeColor(randomColor);
+			int indexToReplace = 0;
 			
-			overlayRois.add(currentRoi);
-			overlayRois.add(number);
+			while(!overlayRois.get(indexToReplace).equals(currentRoi)) {
+				indexToReplace++;
+			}
 			
-			savedRois.updateAndDraw();
-			savedRois.flatten();	//note that flattening might matter if you save the savedROIs image as something other than a .tif (like .png or .jpeg or something) to make sure the drawn lines and numbers appear
+			//remove both the ROI and its associated number from the overlay
+			overlayRois.remove(indexToReplace + 1);
+			overlayRois.remove(indexToReplace);
+		}
+		
+		Polygon currentRoiPoly = currentRoi.getPolygon();
+		int x = currentRoiPoly.xpoints[0];
+		int y = currentRoiPoly.ypoints[0];
+		
+		//create number by the first vertex of the ROI
+		TextRoi number = new TextRoi(x, y, Integer.toString(overlayRois.size()/2 + 1));
+		
+		Random rand = new Random();
+		Color randomColor = new Color(rand.nextFloat(), rand.nextFloat(), rand.nextFloat());
+		
+		number.setStrokeColor(randomColor);
+		currentRoi.setStrokeColor(randomColor);
+		
+		overlayRois.add(currentRoi);
+		overlayRois.add(number);
+		
+		savedRois.updateAndDraw();
+		savedRois.flatten();	//note that flattening might matter if you save the savedROIs image as something other than a .tif (like .png or .jpeg or something) to make sure the drawn lines and numbers appear
+		
+		savedRois.changes = true;	//so that imageJ will ask you if you want to save the image if you try to close the savedROIs window
+	}
+	
+	/**
+	 * Saves the key frames, the anchor point and the line width to a session file (see "KymographSession").
+	 * The current key frames are saved first, followed by the key frames of every saved ROI.
+	 *
+	 * @return void.
+	 */
+	private void saveSession() {
+		
+		SaveDialog dialog = new SaveDialog("Save session", "session", KymographSession.EXTENSION);
+		
+		if(dialog.getFileName() == null) {
+			return;
+		}
+		
+		KymographSession session = new KymographSession(lastLineWidth);
+		session.addTrack(keyFrames);
+		
+		for (KeyFrames savedTrack : savedTracks) {
+			session.addTrack(savedTrack);
+		}
+		
+		File file = new File(dialog.getDirectory(), dialog.getFileName());
+		
+		try {
+			session.save(file);
+			KymographLog.info("Saved session: %s", file);
+		} catch (IOException e) {
+			IJ.error("saveSession error: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Loads the key frames, the anchor point, the interpolation and the line width from a session file, replacing the current key frames and the saved ROIs.
+	 * The interpolated frames are filled in directly, without replaying any ROI events.
+	 *
+	 * @return void.
+	 */
+	private void loadSession() {
+		
+		OpenDialog dialog = new OpenDialog("Load session");
+		
+		if(dialog.getFileName() == null) {
+			return;
+		}
+		
+		File file = new File(dialog.getDirectory(), dialog.getFileName());
+		KymographSession session;
+		
+		try {
+			session = KymographSession.load(file);
+			session.checkFits(numFrames);	//before anything is replaced, so a session that does not fit leaves the current one as it is
+		} catch (IOException e) {
+			IJ.error("loadSession error: " + e.getMessage());
+			return;
+		}
+		
+		int interpolation = session.getTracks().get(0).getInterpolation();	//the interpolation the session was saved with
+		
+		for(KeyFrames track : session.getTracks()) {
+			track.setInterpolation(interpolation);
+		}
+		
+		synchronized(interpolationLock) {
+			keyFrames = session.getTracks().get(0);
 			
-			savedRois.changes = true;	//so that imageJ will ask you if you want to save the image if you try to close the savedROIs window
+			if(interpolatedFrames != null) {
+				interpolatedFrames.clear();
+			}
+			fillRoiArrayInterpolate();
+		}
+		lastLineWidth = session.getLineWidth();
+		
+		if(keyFrames.anchorExists()) {
+			updateAnchor(keyFrames.getAnchorID());
 		}
 		else {
-			IJ.error("saveRoi error: no ROI selected");
+			resetAnchor();
 		}
-
+		
+		ignoreRoiEvents = true;
+		image.setRoi(getInterpolatedRoi(getFrame(image)));
+		ignoreRoiEvents = false;
+		
+		savedTracks.clear();
+		overlayRois.clear();
+		
+		InterpolatedFrames firstFrame = new InterpolatedFrames(1);
+		
+		for(int t = 1; t < session.getTracks().size(); t++) {
+			
+			KeyFrames savedTrack = session.getTracks().get(t);
+			firstFrame.fill(savedTrack, 1, 1, 0);
+			
+			savedTracks.add(savedTrack);
+			drawSavedRoi(firstFrame.getRoi(0));
+		}
+		
+		refreshPreview();
+		
+		KymographLog.info("Loaded session: %s (%d key frames, %d saved ROIs)", file, keyFrames.size(), savedTracks.size());
 	}
 	
 	/**
@@ -328,7 +586,7 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 	 */
 	public void showAbout() {
 		IJ.showMessage("Dyamic Kymograph",
-			"Plugin to generate kymographs using key framing and linear interpolation"
+			"Plugin to generate kymographs using key framing and linear or cubic interpolation"
 		);
 	}
 
@@ -358,6 +616,21 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 		else if (label == "Save current ROI") {
 			saveRoi();
 		}
+		else if (label == "Make all kymographs") {
+			makeAllKymographs();
+		}
+		else if (label == "Cancel") {
+			cancelKymograph();
+		}
+		else if (label == "Live preview") {
+			showPreview();
+		}
+		else if (label == "Save session") {
+			saveSession();
+		}
+		else if (label == "Load session") {
+			loadSession();
+		}
 		else {
 			IJ.error("Invalid ActionEvent in actionPerformed");
 		}
@@ -383,7 +656,7 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 
 		Roi.addRoiListener(this);
 		
-		IJ.log("added listeners");
+		KymographLog.debug("added listeners");
 	}
 	
 	/**
@@ -405,22 +678,11 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
         
         Roi.removeRoiListener(this);
         
-        IJ.log("removed listeners");
+        KymographLog.debug("removed listeners");
 	}
 	
-	/***************************************************************************************
-	*    Title: MultipleKymograph_ source code (modified "getIrregularProfile" method)
-	*    Author: J. Rietdorf and A. Seitz
-	*    Date: 2008
-	*    Code version: 3.0.1
-	*    Availability: https://github.com/fiji/Multi_Kymograph/releases/tag/Multi_Kymograph-3.0.1
-	*
-	***************************************************************************************/
 	/**
-	 * Slightly modified from MultipleKymograph plugin.
-	 * Walks (from start to end) on a polyline ROI to get the pixels along the way.
-	 * Note implementation of "shift" is naive and is not perpendicular to polyline.
-	 * 
+	 * Walks (from start to end) on a polyline ROI to get the pixels along the way. See "KymographSampler.getPixelsPolyline".
 	 *
 	 * @param roi the polyline ROI to walk along
 	 * @param imp the image (on the appropriate frame) that the ROI is associated with
@@ -429,87 +691,11 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 	 * @return Array of pixels along the ROI. Length of the array is roughly the length of the ROI.
 	 */
 	public double[] getPixelsPolyline(Roi roi, ImagePlus imp, int shift) {
-		
-		ImageProcessor ip = imp.getProcessor();
-		int n = ((PolygonRoi)roi).getNCoordinates();
-		int[] x = ((PolygonRoi)roi).getXCoordinates();
-		int[] y = ((PolygonRoi)roi).getYCoordinates();
-	
-		for (int i=0;i<n;i++){
-			x[i]+=shift;
-			y[i]+=shift;
-		}
-		
-			Rectangle r = roi.getBounds();
-			int xbase = r.x;
-			int ybase = r.y;
-			double length = 0.0;
-			double segmentLength;
-			int xdelta, ydelta;
-			double[] segmentLengths = new double[n];
-			int[] dx = new int[n];
-			int[] dy = new int[n];
-			for (int i=0; i<(n-1); i++) {
-	    			xdelta = x[i+1] - x[i];
-	    			ydelta = y[i+1] - y[i];
-	    			segmentLength = Math.sqrt(xdelta*xdelta+ydelta*ydelta);
-	    			length += segmentLength;
-	    			segmentLengths[i] = segmentLength;
-	    			dx[i] = xdelta;
-	    			dy[i] = ydelta;
-			}
-		double[] values = new double[(int)length];
-		double leftOver = 1.0;
-		double distance = 0.0;
-		int index;
-		
-		for (int i=0; i<n; i++) {
-	    		double len = segmentLengths[i];
-	    		if (len==0.0)
-	        		continue;
-	    		double xinc = dx[i]/len;
-	    		double yinc = dy[i]/len;
-	    		double start = 1.0-leftOver;
-	    		double rx = xbase+x[i]+start*xinc;
-	    		double ry = ybase+y[i]+start*yinc;
-	    		double len2 = len - start;
-	    		int n2 = (int)len2;
-
-	    		for (int j=0; j<=n2; j++) {
-	        			index = (int)distance+j;
-	        			if (index<values.length)
-	        				values[index] = getPixel(ip, rx, ry);	//modified to handle colored images
-	        			rx += xinc;
-	     	   			ry += yinc;
-	    		}
-	    	distance += len;
-	    	leftOver = len2 - n2;
-		}
-	
-		return values;
-	}	
-	
-	/**
-	 * Returns the pixel value at specified coordinates. Returns greyscale or ARGB pixel depending on image type.
-	 *
-	 * @param ip the image (on a specific frame)
-	 * @param x x coordinate  
-	 * @param y y coordinate
-	 * 
-	 * @return interpolated greyscale or ARGB pixel located at coordinates (x,y).
-	 */
-	private double getPixel(ImageProcessor ip, double x, double y) {
-		
-		if (imageType == ImagePlus.GRAY8 || imageType == ImagePlus.GRAY16 || imageType == ImagePlus.GRAY32) {
-			return ip.getInterpolatedValue(x, y);
-		}
-		else {
-			return ((ColorProcessor) ip).getInterpolatedRGBPixel(x, y);
-		}
+		return sampler.getPixelsPolyline(roi, imp.getProcessor(), shift);
 	}
 	
 	/**
-	 * Implements line width by averaging over multiple pixel arrays obtained by changing the "shift" parameter in "getPixelsPolyline."
+	 * Implements line width by averaging over multiple pixel arrays. See "KymographSampler.averageWidth".
 	 * 
 	 * @param imp the image (on the appropriate frame)
 	 * @param roi the polyline ROI to walk along
@@ -518,445 +704,543 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 	 * @return elementwise average of the shifted pixel arrays.
 	 */
 	public double[] averageWidth(ImagePlus imp, Roi roi, int lineWidth) {
+		return sampler.averageWidth(imp.getProcessor(), roi, lineWidth);
+	}
+	
+	/**
+	 * Returns the interpolated ROI on a frame. In lazy mode, the ROI is interpolated from the surrounding key frames on demand and kept in a small LRU cache.
+	 * Waits for an interpolation running on the interpolator thread, if any.
+	 * 
+	 * @param frame the frame number
+	 * 
+	 * @return the interpolated ROI on the frame, or null if there are no key frames
+	 */
+	public Roi getInterpolatedRoi(int frame) {
 		
-		double[] pixels = getPixelsPolyline(roi, imp, 0);
-		
-		if (imageType == ImagePlus.GRAY8 || imageType == ImagePlus.GRAY16 || imageType == ImagePlus.GRAY32) {
+		synchronized(interpolationLock) {
 			
-			for (int width = 1; width <= lineWidth/2; width++) {
-				double[] nextShiftPlus = getPixelsPolyline(roi, imp, width);
-				double[] nextShiftMinus = getPixelsPolyline(roi, imp, -width);
-				
-				for(int i = 0; i < pixels.length; i++) {
-					pixels[i] += nextShiftPlus[i] + nextShiftMinus[i];
-				}
-				
+			if(!lazyInterpolation) {
+				return interpolatedFrames.getRoi(frame);
 			}
 			
-			for(int i = 0; i < pixels.length; i++) {
-				pixels[i] /= lineWidth;
-			}
-		}
-		
-		//TODO figure out what to do for colored kymographs. Current implementation is the same as for greyscale images, but this is not correct.
-		else {
+			Roi roi = roiCache.get(frame);
 			
-			for (int width = 1; width <= lineWidth/2; width++) {
-				double[] nextShiftPlus = getPixelsPolyline(roi, imp, width);
-				double[] nextShiftMinus = getPixelsPolyline(roi, imp, -width);
+			if(roi == null) {
+				roi = interpolateFrame(frame);
 				
-				for(int i = 0; i < pixels.length; i++) {
-					pixels[i] += nextShiftPlus[i] + nextShiftMinus[i];
+				if(roi != null) {
+					roiCache.put(frame, roi);
 				}
-				
 			}
 			
-			for(int i = 0; i < pixels.length; i++) {
-				pixels[i] /= lineWidth;
-			}
+			return roi;
 		}
-		
-		return pixels;
 	}
 	
 	/**
-	 * Helper method for "averageWidth". Used to convert a color represented by a ARGB int into 3 RGB values.
-	 * Experimental. (I don't know if this works).
+	 * Interpolates the ROI on a single frame from the key frames just before and after it. Does not use or change any cached ROIs.
+	 * Frames before the first key frame (after the last key frame) get a copy of the first (last) key frame.
 	 * 
-	 * @param argb a color represented by a ARGB int
+	 * @param frame the frame number
 	 * 
-	 * @return array of 3 integers (representing red, blue, and green).
+	 * @return the interpolated ROI on the frame, or null if there are no key frames
 	 */
-	private int[] ARGBtoRGB(int argb) {
-		//TODO not sure if this works
-		int[] rgb = new int[3];
-		int a = (argb >> 24) & 0xFF;
-		int r = (argb >> 16) & 0xFF;
-		int g = (argb >> 8) & 0xFF;
-		int b = argb & 0xFF;
-		
-		rgb[0] = a * r;
-		rgb[1] = a * g;
-		rgb[2] = a * b;
-		
-		return rgb;
+	private Roi interpolateFrame(int frame) {
+		
+		InterpolatedFrames single = new InterpolatedFrames(1);
+		single.fill(keyFrames, frame, frame, 0);
+		
+		return single.getRoi(0);
 	}
 	
 	/**
-	 * Helper method for "fillRoiArrayInterpolate". Interpolates between two key frames represented by (startRoi, startFrame) and (endRoi, endFrame).
-	 * Note that this method assumes both ROIs are polylines with the same number of points.
+	 * Switches between keeping an interpolated ROI for every frame (fast lookups) and interpolating on demand (memory scales with the number of key frames).
 	 * 
-	 * @param startRoi the polyline ROI recorded on startFrame
-	 * @param endRoi the polyline ROI recorded on endFrame
-	 * @param startFrame frame number associated with startRoi
-	 * @param endFrame frame number associated with endRoi
+	 * @param lazy true to interpolate on demand
+	 */
+	public void setLazyInterpolation(boolean lazy) {
+		
+		if(lazy == lazyInterpolation) {
+			return;
+		}
+		
+		synchronized(interpolationLock) {
+			
+			lazyInterpolation = lazy;
+			roiCache.clear();
+			
+			if(lazy) {
+				interpolatedFrames = null;
+			}
+			else {
+				interpolatedFrames = new InterpolatedFrames(numFrames + 1);
+				fillRoiArrayInterpolate();
+			}
+		}
+	}
+	
+	/**
+	 * Chooses how the ROIs between key frames are interpolated, for the current and saved ROIs, and interpolates them again.
+	 * Linear by default, or as set by the ImageJ preference "dynamic_kymograph.interpolation" ("linear" or "cubic"). See "KeyFrames.setInterpolation".
 	 * 
-	 * @return array of interpolated ROIs such that the the i-th entry is the interpolated ROI on frame "startFrame + i"
+	 * @param interpolation KeyFrames.LINEAR or KeyFrames.CUBIC
 	 */
-	private Roi[] interpolateRoi(Roi startRoi, Roi endRoi, int startFrame, int endFrame) {
+	public void setInterpolation(int interpolation) {
 		
-		int dFrame = endFrame - startFrame;
+		synchronized(interpolationLock) {
+			
+			if(interpolation == keyFrames.getInterpolation()) {
+				return;
+			}
+			
+			keyFrames.setInterpolation(interpolation);
+			
+			for(KeyFrames savedTrack : savedTracks) {
+				savedTrack.setInterpolation(interpolation);
+			}
+			
+			fillRoiArrayInterpolate();
+		}
 		
-		FloatPolygon startPolygon = startRoi.getFloatPolygon();
-		FloatPolygon endPolygon = endRoi.getFloatPolygon();
+		refreshPreview();
 		
-		int startN = startPolygon.npoints;
-		float[] startX = startPolygon.xpoints;
-		float[] startY = startPolygon.ypoints;
+		KymographLog.info("Interpolation: %s", KeyFrames.INTERPOLATION_NAMES[interpolation]);
+	}
+	
+	/**
+	 * @return KeyFrames.LINEAR or KeyFrames.CUBIC
+	 */
+	public int getInterpolation() {
+		return keyFrames.getInterpolation();
+	}
+	
+	/**
+	 * @return true if interpolated ROIs are computed on demand rather than kept for every frame.
+	 */
+	public boolean isLazyInterpolation() {
+		return lazyInterpolation;
+	}
+	
+	/**
+	 * Iterates through the current collection of recorded key frames and fills in the between frames with interpolated ROIs. For real time interpolation.
+	 * Only the vertices are filled (no ROIs are made), so no ROI events are fired. Callers on the event thread must hold interpolationLock.
+	 */
+	public void fillRoiArrayInterpolate() {
 		
-		int endN = endPolygon.npoints;
-		float[] endX = endPolygon.xpoints;
-		float[] endY =  endPolygon.ypoints;
+		if(KymographLog.isDebug()) {
+			KymographLog.debug("%s", keyFrames);
+		}
 		
-		if(startN != endN) {
-			IJ.error("interpolateRoi: polylines must have same number of points");
-			return null;
+		if(lazyInterpolation) {
+			roiCache.clear();	//every frame is interpolated again when it is next asked for
+			return;
 		}
 		
-		else {
-			float[] difX = new float[startN];
-			float[] difY = new float[startN];
+		if(!keyFrames.isEmpty()){
 			
-			for(int i = 0; i < startN; i++) {
-				difX[i] = (endX[i] - startX[i]) /dFrame;
-				difY[i] = (endY[i] - startY[i]) /dFrame;
-			}
+			int lastIndex = keyFrames.size() - 1;
 			
-			float[] interpolatedX = startX;
-			float[] interpolatedY = startY;
+			//no interpolation before the first key frame and after the last key frame
+			fillInterval(1, keyFrames.getFrame(0));
 			
-			Roi[] interpolatedRois = new Roi[dFrame+1];
+			for (int index = 0; index < lastIndex; index++) {
+				fillInterval(keyFrames.getFrame(index), keyFrames.getFrame(index + 1));	//interpolate between each key frame and the next
+			}
 			
-			for(int frame = 0; frame < interpolatedRois.length; frame++) {
-				
-				interpolatedRois[frame] = new PolygonRoi(interpolatedX, interpolatedY, startN, Roi.POLYLINE);
-				
-				for (int i = 0; i < interpolatedX.length; i++) {
-					interpolatedX[i] += difX[i];
-					interpolatedY[i] += difY[i];
-				}
-		}
-		
-			return interpolatedRois;
+			fillInterval(keyFrames.getFrame(lastIndex), numFrames);
 		}
 	}
 	
 	/**
-	 * Helper method for "assembleKymographInterpolate". Aligns a slice of the kymograph based on the position of the anchor point.
+	 * Updates the interpolated ROIs after the key frame on editedFrame was recorded or changed. For real time interpolation.
+	 * Only the frames between the previous and next key frames (or the ends of the stack) can change, so only those are recomputed.
 	 * 
-	 * @param pixels the kymograph slice (pixels along a ROI after averaging for line width) to align
-	 * @param kymoWidth the length of the longest slice (the longest ROI) in the entire kymograph
-	 * @param the index of the anchor point in the pixel array of the longest kympgraph slice
-	 * @param roi the ROI used for this kymograph slice
-	 * 
-	 * @return a pixel array of size kymoWidth such that the anchor point of the input pixel array is aligned with indexToMatch
+	 * @param editedFrame the frame of the key frame that was recorded or changed
 	 */
-	private double[] alignPixels(double[] pixels, int kymoWidth, int indexToMatch, Roi roi) {
+	public void fillRoiArrayInterpolate(int editedFrame) {
+		fillRoiArrayInterpolate(editedFrame, editedFrame);
+	}
 	
-		double[] alignedPixels = new double[kymoWidth];
-		
-		Polygon roiPolygon = roi.getPolygon();
-		
-		int[] x = roiPolygon.xpoints;
-		int[] y = roiPolygon.ypoints;
-		int n = roiPolygon.npoints;
+	/**
+	 * Updates the interpolated ROIs after the key frames from firstEdited to lastEdited were recorded or changed (a burst of edits, see "interpolatePending").
+	 * Only the frames between the key frame before firstEdited and the key frame after lastEdited (or the ends of the stack) can change, so only those are recomputed.
+	 * With cubic interpolation, the frames up to three key frames each way can change (see "KeyFrames.getEditReach").
+	 * 
+	 * @param firstEdited the first frame whose key frame was recorded or changed
+	 * @param lastEdited the last frame whose key frame was recorded or changed
+	 */
+	public void fillRoiArrayInterpolate(int firstEdited, int lastEdited) {
 		
-		double lengthBeforeAnchor = 0;
+		int firstIndex = keyFrames.indexOf(firstEdited);
+		int lastIndex = keyFrames.indexOf(lastEdited);
 		
-		for(int i = 0; i < anchorID && i < n; i++) {
-			int dx = x[i + 1] - x[i];
-			int dy = y[i + 1] - y[i];
-			lengthBeforeAnchor += Math.sqrt(dx*dx+dy*dy);
+		if(lazyInterpolation || keyFrames.size() <= 1 || firstIndex < 0 || lastIndex < 0) {
+			fillRoiArrayInterpolate();
+			return;
 		}
 		
-		int anchorIndex = (int) lengthBeforeAnchor;
+		int reach = keyFrames.getEditReach();
+		int previousIndex = Math.max(firstIndex - reach, 0);
+		int nextIndex = Math.min(lastIndex + reach, keyFrames.size() - 1);
 		
-		int startIndex = 0;	//defined such that startIndex + lengthBeforeAnchor = indexToMatch so that the anchor point is aligned with the indexToMatch
-		if (indexToMatch - anchorIndex > 1) {
-			startIndex = indexToMatch - anchorIndex;
+		if(firstIndex == 0) {	//no interpolation before the first key frame, which repeats it
+			fillInterval(1, keyFrames.getFrame(0));
 		}
 		
-		for(int i = 0; i < pixels.length && startIndex + i < alignedPixels.length; i++) {
-			alignedPixels[startIndex + i] = pixels[i];
+		for (int index = previousIndex; index < nextIndex; index++) {
+			fillInterval(keyFrames.getFrame(index), keyFrames.getFrame(index + 1));
 		}
 		
-		return alignedPixels;
+		if(lastIndex == keyFrames.size() - 1) {	//no interpolation after the last key frame, which repeats it
+			fillInterval(keyFrames.getFrame(nextIndex), numFrames);
+		}
 	}
-
+	
 	/**
-	 * Iterates through the current collection of recorded key frames and fills in the between frames with interpolated ROIs. For real time interpolation.
+	 * Helper method for "fillRoiArrayInterpolate". Fills in frames startFrame through endFrame (inclusive).
+	 * Interpolates if both ends are key frames. Otherwise the interval runs to an end of the stack and is filled with copies of its one key frame.
+	 * 
+	 * @param startFrame first frame of the interval
+	 * @param endFrame last frame of the interval
 	 */
-	public void fillRoiArrayInterpolate() {
+	private void fillInterval(int startFrame, int endFrame) {
 		
-		System.out.println(recordedRois);
-		Roi.removeRoiListener(this);
+		int startIndex = keyFrames.indexOf(startFrame);
+		int endIndex = keyFrames.indexOf(endFrame);
 		
-		if(!recordedRois.isEmpty()){
-			if(recordedRois.size() == 1) { //nothing to interpolate
-				for (Roi roi : recordedRois.values()) {
-					for(int i = 1; i < interpolatedRois.length; i++) {
-						interpolatedRois[i] = roiCopy((PolygonRoi) roi);
-					}
-				}
-			}
-			else {
-				//TODO this implementation is relatively inefficient. Could make more elegant and efficient with better data structure (see KeyFrames)
-				List<Integer> sortedRois = new ArrayList<Integer>(recordedRois.keySet());
-				Collections.sort(sortedRois);
-				
-				int firstKeyFrame = sortedRois.get(0);
-				int lastKeyFrame = sortedRois.get(sortedRois.size()-1);
-				
-				for (int frame : sortedRois) {
-					interpolatedRois[frame] = roiCopy((PolygonRoi) recordedRois.get(frame));
-				}
-				
-				interpolatedRois[1] = roiCopy((PolygonRoi) interpolatedRois[firstKeyFrame]);	//propagate first key frame to beginning of image stack
-				
-				interpolatedRois[numFrames] = roiCopy((PolygonRoi) interpolatedRois[lastKeyFrame]); 	//propagate last key frame to end of image stack
-				
-				//the "if" statements ensure that there will be no interpolation before the first key frame and after the last key frame
-				if(!sortedRois.contains(1)) {
-					sortedRois.add(1);
-				}
-				if(!sortedRois.contains(numFrames)) {
-					sortedRois.add(numFrames);
-				}
-				
-				Collections.sort(sortedRois);
-				
-				ListIterator<Integer> roiIterator = sortedRois.listIterator();
-				
-				int currentFrame = 1;
-				int nextFrame = 1;
-					
-				while (roiIterator.hasNext()) {
-					
-					currentFrame = roiIterator.next();
-					System.out.println("current frame: " + currentFrame);
-					Roi[] currentInterpolation = {roiCopy((PolygonRoi) interpolatedRois[currentFrame])};
-					
-					if (roiIterator.hasNext()) {
-						nextFrame = roiIterator.next();
-						System.out.println("next frame: " + nextFrame);
-						currentInterpolation = interpolateRoi(interpolatedRois[currentFrame], interpolatedRois[nextFrame], currentFrame, nextFrame);	//interpolate between currentFrame and nextFrame
-						roiIterator.previous();
-					}
-					
-					for (int i = 0; i <currentInterpolation.length; i++) {
-						interpolatedRois[currentFrame + i] = roiCopy((PolygonRoi) currentInterpolation[i]);	//fill in the interpolated frames between currentFrame and nextFrame
-					}
-					
-					currentFrame = nextFrame;
+		if(startIndex >= 0 && endIndex >= 0 && keyFrames.getNPoints(startIndex) != keyFrames.getNPoints(endIndex)) {
+			
+			//shown on the event thread: the interpolator thread holds interpolationLock, which the event thread may be waiting for
+			EventQueue.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					IJ.error("interpolateRoi: polylines must have same number of points");
 				}
-			}
+			});
+			return;
 		}
-		Roi.addRoiListener(this);
+		
+		interpolatedFrames.fill(keyFrames, startFrame, endFrame, startFrame);	//interpolates between key frames, and repeats the key frame towards the ends of the stack
 	}
 	
 	/**
 	 * Iterates through the current collection of recorded key frames and fills in the between frames with the most recent key frame. No interpolation.
+	 * Does nothing in lazy mode, which keeps no interpolated frames.
 	 * Note that this method is not currently used by the plugin.
 	 */
 	public void fillRoiArray() {
 		
-		System.out.println(recordedRois);
-		Roi.removeRoiListener(this);	
+		if(KymographLog.isDebug()) {
+			KymographLog.debug("%s", keyFrames);
+		}
 		
-		if(!recordedRois.isEmpty()) {
-			
-			if(recordedRois.size() == 1) { //nothing to interpolate
-	
-				for (Roi roi : recordedRois.values()) {
-					for(int i = 1; i < interpolatedRois.length; i++) {
-						interpolatedRois[i] = roi;
-					}
-				}
-			}
+		if(interpolatedFrames == null) {
+			return;
+		}
+		
+		if(!keyFrames.isEmpty()) {
 			
-			else {
-				
-				List<Integer> sortedRois = new ArrayList<Integer>(recordedRois.keySet());
-				Collections.sort(sortedRois);
-				
-				for (int frame : sortedRois) {
-					interpolatedRois[frame] = recordedRois.get(frame);
-				}
-				
-				int firstKeyFrame = sortedRois.get(0);
-				int lastKeyFrame = sortedRois.get(sortedRois.size()-1);
-				
-				interpolatedRois[1] = interpolatedRois[firstKeyFrame];
-				interpolatedRois[numFrames] = interpolatedRois[lastKeyFrame];
-				
-				if(!sortedRois.contains(1)) {
-					sortedRois.add(1);
-				}
-				if(!sortedRois.contains(numFrames)) {
-					sortedRois.add(numFrames);
-				}
-				
-				Collections.sort(sortedRois);
-				
-				ListIterator<Integer> roiIterator = sortedRois.listIterator();
-				
-				int currentFrame = 1;
-				int nextFrame = 1;
-				
-				while (roiIterator.hasNext()) {
-					
-					currentFrame = roiIterator.next();
-					System.out.println("current frame: " + currentFrame);
-					System.out.println("current roi: " + recordedRois.get(currentFrame));
-					
-					if (roiIterator.hasNext()) {
-						nextFrame = roiIterator.next();
-						System.out.println("next frame: " + nextFrame);
-						roiIterator.previous();
-					}
-					
-					int dFrame = nextFrame - currentFrame;
-					
-					for (int i = 0; i < dFrame; i++) {
-						interpolatedRois[currentFrame + i] = interpolatedRois[currentFrame];
-					}
-					currentFrame = nextFrame;
-				}
+			for (int frame = 1; frame <= numFrames; frame++) {
+				int keyFrame = keyFrames.getFrame(Math.max(keyFrames.floorIndex(frame), 0));	//frames before the first key frame get the first key frame
+				interpolatedFrames.fill(keyFrames, keyFrame, keyFrame, frame);
 			}
 		}
-		Roi.addRoiListener(this);
 	}
 	
 	/**
 	 * Shows only key frames on the frames that they were recorded.
+	 * Does nothing in lazy mode, which keeps no interpolated frames.
 	 * Note that this method is not currently used by the plugin.
 	 */
 	public void showKeyFrames() {
 		
-		System.out.println(recordedRois);
-		Roi.removeRoiListener(this);
+		if(KymographLog.isDebug()) {
+			KymographLog.debug("%s", keyFrames);
+		}
 		
-		if(!recordedRois.isEmpty()) {
-				
-				for (int frame : recordedRois.keySet()){
-					interpolatedRois[frame] = recordedRois.get(frame);
-			}
+		if(interpolatedFrames == null) {
+			return;
+		}
+		
+		interpolatedFrames.clear();
+		
+		for (int index = 0; index < keyFrames.size(); index++){
+			int keyFrame = keyFrames.getFrame(index);
+			interpolatedFrames.fill(keyFrames, keyFrame, keyFrame, keyFrame);
 		}
-		Roi.addRoiListener(this);
 	}
 	
 	/**
-	 * Assembles and displays a kymograph generated by interpolating between all key frames (uses the ROIs in the "interpolatedRois" array)
+	 * Assembles and displays a kymograph generated by interpolating between all key frames, in the background (see "KymographTask").
+	 * The key frames are copied first and interpolated while sampling, so they can keep being edited while the kymograph is made.
 	 */
 	public void assembleKymographInterpolate() {
 		
+		if(!canStartTask()) {
+			return;
+		}
+		
 		int lineWidth = promptWidth();
 		
-		int maxAnchorIndex = 0;
+		if(lineWidth == IJ.CANCELED || lineWidth % 2 == 0) {
+			return;
+		}
 		
-		int kymoHeight = numFrames;
-		int kymoLength = 0; //use length of longest ROI
+		KymographAssembler assembler = new KymographAssembler(sampler, keyFrames.copy(), null);
+		assembler.setLineWidth(lineWidth);
+		assembler.setNumThreads(numThreads);
+		assembler.setStreaming(streaming);
+		assembler.setRowCache(rowCache);
 		
-		//find longest ROI and the ROI with the furthest distance to the anchor point
-		for (Roi roi: recordedRois.values()) {
-			
-			double[] pixels = null;
-			
-			pixels = averageWidth(image, roi, lineWidth);
-			
-			Polygon roiPolygon = roi.getPolygon();
-			
-			int[] x = roiPolygon.xpoints;
-			int[] y = roiPolygon.ypoints;
-			
-			double lengthBeforeAnchor = 0;
-			
-			for(int i = 0; i < anchorID; i++) {
-				int dx = x[i + 1] - x[i];
-				int dy = y[i + 1] - y[i];
-				lengthBeforeAnchor += Math.sqrt(dx*dx+dy*dy);
-			}
-			
-			if(lengthBeforeAnchor > maxAnchorIndex) {
-				maxAnchorIndex = (int) lengthBeforeAnchor;
-			}
-						
-			int length = pixels.length;
-			if (length > kymoLength){
-				kymoLength = length;
-			}
+		task = new KymographTask(assembler, new String[] {"Kymograph"}, calibration);
+		setMetrics(task);
+		task.start();
+		
+		if(KymographLog.isDebug()) {
+			KymographLog.debug("%s", keyFrames);
 		}
+	}
+	
+	/**
+	 * Assembles and displays the kymograph of every saved ROI. Every frame of the stack is read once and sampled along all of the saved ROIs.
+	 * Kymographs are numbered like the ROIs in the Saved ROIs window.
+	 */
+	public void assembleAllKymographs() {
 		
-		ImageProcessor kymo;
+		if(!canStartTask()) {
+			return;
+		}
 		
-		if(imageType == ImagePlus.GRAY8) {
-			kymo = new ByteProcessor(kymoLength, kymoHeight);
+		int lineWidth = promptWidth();
+		
+		if(lineWidth == IJ.CANCELED || lineWidth % 2 == 0) {
+			return;
 		}
-		else if(imageType == ImagePlus.GRAY16) {
-			kymo = new ShortProcessor(kymoLength, kymoHeight);
+		
+		KymographAssembler assembler = new KymographAssembler(sampler);
+		assembler.setLineWidth(lineWidth);
+		assembler.setNumThreads(numThreads);
+		assembler.setStreaming(streaming);
+		
+		String[] titles = new String[savedTracks.size()];
+		
+		for (int t = 0; t < savedTracks.size(); t++) {
+			assembler.addTrack(savedTracks.get(t), null);	//saved key frames are never edited, and are interpolated while sampling
+			titles[t] = "Kymograph " + (t + 1);
 		}
-		else if(imageType  == ImagePlus.GRAY32) {
-			kymo = new FloatProcessor(kymoLength, kymoHeight);
+		
+		task = new KymographTask(assembler, titles, calibration);
+		setMetrics(task);
+		task.start();
+	}
+	
+	/**
+	 * Helper method for "assembleKymographInterpolate" and "assembleAllKymographs". Times the task if the ImageJ preference "dynamic_kymograph.metrics" is true
+	 * (see "KymographMetrics"), and appends the metrics to the CSV file named by "dynamic_kymograph.metrics.csv", if any.
+	 * 
+	 * @param task the task to time
+	 */
+	private void setMetrics(KymographTask task) {
+		
+		if(!Prefs.get(KymographMetrics.PREF_KEY, false)) {
+			return;
 		}
-		else {
-			kymo = new ColorProcessor(kymoLength, kymoHeight);
+		
+		String metricsPath = Prefs.get(KymographMetrics.FILE_PREF_KEY, "");
+		
+		task.setMetrics(new KymographMetrics(image.getTitle()), metricsPath.isEmpty() ? null : new File(metricsPath));
+	}
+	
+	/**
+	 * Helper method for "assembleKymographInterpolate" and "assembleAllKymographs". Only one kymograph task runs at a time.
+	 * 
+	 * @return true if no kymograph is being assembled
+	 */
+	private boolean canStartTask() {
+		
+		if(task != null && task.isRunning()) {
+			IJ.error("A kymograph is already being made. Press \"Cancel\" to stop it");
+			return false;
 		}
 		
-		Roi.removeRoiListener(this);
+		return true;
+	}
+	
+	/**
+	 * Opens a live kymograph preview of the current key frames (closing the previous one, if any). The preview is updated after every key frame edit.
+	 * Press again to change the line width of the preview.
+	 */
+	private void showPreview() {
 		
-		//get pixels on each frame
-		for(int frame = 1; frame <= numFrames; frame++){
-			image.setSlice(frame);
-
-			Roi currentRoi = interpolatedRois[frame];
-			
-			double[] pixels = null;
-			double[] alignedPixels = new double[kymoLength];
-
-			pixels = averageWidth(image, currentRoi, lineWidth);
-			alignedPixels = alignPixels(pixels, kymoLength, maxAnchorIndex, currentRoi);
+		if(keyFrames.isEmpty()) {
+			IJ.error("No ROIs recorded");
+			return;
+		}
+		
+		int lineWidth = promptWidth();
+		
+		if(lineWidth == IJ.CANCELED || lineWidth % 2 == 0) {
+			return;
+		}
+		
+		if(preview != null) {
+			preview.close();
+		}
+		
+		preview = new KymographPreview(sampler, calibration, lineWidth, numThreads);
+		refreshPreview();
+	}
+	
+	/**
+	 * Tells the live preview (if open) that every frame may have changed. The key frames are copied under interpolationLock,
+	 * so the interpolator thread cannot change them while they are copied.
+	 */
+	private void refreshPreview() {
+		
+		synchronized(interpolationLock) {
 			
-			for(int i = 0; i < alignedPixels.length && i < kymoLength; i++){
-				putPixel(kymo, i, frame, alignedPixels[i]);
+			if(preview != null && preview.isOpen()) {
+				preview.update(keyFrames, 1, numFrames);
 			}
 		}
+	}
+	
+	/**
+	 * Helper method for "interpolatePending". Tells the live preview (if open) which frames may have changed after the key frames from firstEdited to lastEdited were recorded or changed:
+	 * the frames from the key frame before firstEdited to the key frame after lastEdited (further with cubic interpolation) or the ends of the stack, the same frames "fillRoiArrayInterpolate" refills.
+	 * 
+	 * @param firstEdited the first frame whose key frame was recorded or changed
+	 * @param lastEdited the last frame whose key frame was recorded or changed
+	 */
+	private void updatePreview(int firstEdited, int lastEdited) {
 		
-		//display final kymograph
-		ImagePlus kymoToDisplay = new ImagePlus("Kymograph", kymo);
-
-		Calibration kymoCal = kymoToDisplay.getCalibration();
-		if(Double.isFinite(calibration.frameInterval)) {
-			kymoCal.pixelHeight = calibration.frameInterval;
+		KymographPreview shown = preview;
+		
+		if(shown == null || !shown.isOpen()) {
+			return;
 		}
-		kymoCal.setYUnit(calibration.getTimeUnit());
-		kymoCal.pixelWidth = calibration.pixelWidth;
-		kymoCal.setXUnit(calibration.getXUnit());
-
-		kymoToDisplay.show();
 		
-		System.out.println(recordedRois);
+		int firstIndex = keyFrames.indexOf(firstEdited);
+		int lastIndex = keyFrames.indexOf(lastEdited);
+		int reach = keyFrames.getEditReach();
+		int previousKeyFrame = firstIndex - reach >= 0 ? keyFrames.getFrame(firstIndex - reach) : 1;
+		int nextKeyFrame = lastIndex >= 0 && lastIndex + reach < keyFrames.size() ? keyFrames.getFrame(lastIndex + reach) : numFrames;
 		
-		Roi.addRoiListener(this);
+		shown.update(keyFrames, previousKeyFrame, nextKeyFrame);
 	}
 	
 	/**
-	 * Helper method for "assembleKymographInterpolate". Used to place a pixel value at location (x,y) in the kymograph.
+	 * Helper method for "roiModified". Schedules the interpolation after the key frame on editedFrame was recorded or changed.
+	 * Edits made before the interpolation runs are merged into it, so a drag is interpolated once per burst of ROI events rather than once per event.
 	 * 
-	 * @param ip the ImageProcessor of the kymograph
-	 * @param x the x-coordinate in the kymograph
-	 * @param y the y-coordinate in the kymograph
-	 * @param value the pixel value (either greyscale or ARGB) to place at (x,y)
+	 * @param editedFrame the frame of the key frame that was recorded or changed
 	 */
-	private void putPixel(ImageProcessor ip, int x, int y, double value) {
+	private void scheduleInterpolation(int editedFrame) {
 		
-		if (imageType == ImagePlus.GRAY8 || imageType == ImagePlus.GRAY16 || imageType == ImagePlus.GRAY32) {
-			ip.putPixelValue(x, y, value);
+		synchronized(interpolationLock) {
+			
+			pendingFirstEdit = Math.min(pendingFirstEdit, editedFrame);
+			pendingLastEdit = Math.max(pendingLastEdit, editedFrame);
+			
+			if(!interpolationScheduled) {
+				interpolationScheduled = true;
+				interpolator.schedule(new Runnable() {
+					@Override
+					public void run() {
+						interpolatePending();
+					}
+				}, COALESCE_DELAY, TimeUnit.MILLISECONDS);
+			}
 		}
-		else {
-			((ColorProcessor) ip).putPixel(x, y, (int) value);
+	}
+	
+	/**
+	 * Interpolates (and updates the live preview) after the edits merged by "scheduleInterpolation", on the interpolator thread.
+	 */
+	private void interpolatePending() {
+		
+		synchronized(interpolationLock) {
+			
+			int firstEdited = pendingFirstEdit;
+			int lastEdited = pendingLastEdit;
+			
+			pendingFirstEdit = Integer.MAX_VALUE;
+			pendingLastEdit = 0;
+			interpolationScheduled = false;
+			
+			try {
+				long start = System.nanoTime();
+				
+				fillRoiArrayInterpolate(firstEdited, lastEdited); //replace this function to change interpolation
+				
+				if(KymographLog.isDebug()) {
+					KymographLog.debug("Interpolated key frames %d to %d in %.3f ms", firstEdited, lastEdited, (System.nanoTime() - start) / 1e6);
+				}
+				
+				updatePreview(firstEdited, lastEdited);
+			} catch (RuntimeException e) {
+				IJ.handleException(e);
+			}
 		}
 	}
 	
+	/**
+	 * Switches streaming mode on or off. In streaming mode, frames are read in order by a background thread a few frames ahead of sampling.
+	 * On by default for virtual stacks.
+	 * 
+	 * @param streaming true to assemble kymographs in streaming mode
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+	
+	/**
+	 * @return true if kymographs are assembled in streaming mode.
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+	
+	/**
+	 * Chooses the z-slice sampled on each frame of a hyperstack with z-slices.
+	 * 
+	 * @param zSlice the z-slice, or 0 to sample the maximum projection over z (the default)
+	 */
+	public void setZSlice(int zSlice) {
+		sampler.setZSlice(zSlice);
+	}
+	
+	/**
+	 * Returns the frame shown in an image window. On a hyperstack, this is the time point, whatever channel or z-slice is shown.
+	 * An image without a time axis is navigated by slice, like a plain stack.
+	 * 
+	 * @param imp the image
+	 * 
+	 * @return the frame (1 through numFrames)
+	 */
+	private int getFrame(ImagePlus imp) {
+		
+		int[] position = imp.convertIndexToPosition(imp.getCurrentSlice());	//channel, z-slice, time point
+		
+		return imp.getNFrames() > 1 ? position[2] : position[1];
+	}
+	
+	/**
+	 * Sets the number of threads used to assemble kymographs.
+	 * 
+	 * @param numThreads the number of threads. 1 (or less) assembles the kymograph serially
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
+	}
+	
+	/**
+	 * @return the number of threads used to assemble kymographs.
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+	
 	/**
 	 * Notified by RoiListener when an event occurs. Used to record and update key frames when a ROI is modified.
 	 * 
@@ -966,7 +1250,7 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 	@Override
 	public void roiModified(ImagePlus imp, int id) {
 		
-		if(imp == image) {
+		if(imp == image && !ignoreRoiEvents) {
 			
 			String type = "UNKNOWN";
 			
@@ -988,22 +1272,26 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 	        if (id == MODIFIED || id == COMPLETED || id == MOVED) {
 	        	
 	        	Roi currentRoi =imp.getRoi();
-	        	int currentFrame = imp.getCurrentSlice();
+	        	int currentFrame = getFrame(imp);
 	        	
-	        	IJ.log("ROI event: " + type);
+	        	if(KymographLog.isDebug()) {
+	        		KymographLog.debug("ROI event: %s", type);
+	        	}
 	        	
 	        	if(currentRoi == null) {
 	        		IJ.error("RoiListener error: no ROI to record");
 	        	}
 	        	else if (currentRoi.getType() == Roi.POLYLINE) {
 	        		//record as key frame
-	        		Roi toPut = roiCopy((PolygonRoi) currentRoi);
-	        		
-	    			IJ.log("Frame: " + currentFrame + " record ROI: " + currentRoi);
+	    			if(KymographLog.isDebug()) {
+	    				KymographLog.debug("Frame: %d record ROI: %s", currentFrame, currentRoi);
+	    			}
 	    			
-	    			recordedRois.put(currentFrame, toPut);
+	    			synchronized(interpolationLock) {
+	    				keyFrames.addKeyFrame(new KeyFrame(currentFrame, currentRoi));
+	    			}
 	    			
-	    			fillRoiArrayInterpolate(); //replace this function to change interpolation
+	    			scheduleInterpolation(currentFrame);	//interpolated once the burst of edits is over
 	        	}
 	        	else {
 	        		IJ.error("RoiListener error: please use polyline tool");
@@ -1011,7 +1299,9 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 	        }
 	        
 	        else {
-	        	IJ.log("Did not record ROI event: " + type);
+	        	if(KymographLog.isDebug()) {
+	        		KymographLog.debug("Did not record ROI event: %s", type);
+	        	}
 	        }	
 		}
 	}
@@ -1040,7 +1330,7 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 	 * @return the line width entered by the user.
 	 */
 	private int promptWidth() {
-		int lineWidth = (int) IJ.getNumber("Line Width", 1);
+		int lineWidth = (int) IJ.getNumber("Line Width", lastLineWidth);
 		
 		if (lineWidth == IJ.CANCELED) {
 			IJ.error("Canceled");
@@ -1048,6 +1338,9 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 		else if (lineWidth % 2 == 0) {
 			IJ.error("Please enter odd line width");
 		}
+		else {
+			lastLineWidth = lineWidth;
+		}
 		
 		return lineWidth;
 	}
@@ -1058,11 +1351,37 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 	 * @param ip the image that was updated
 	 */
 	@Override
-	public void imageUpdated(ImagePlus ip) {
+	public void imageUpdated(final ImagePlus ip) {
+		
+		if(ip != image) {
+			return;	//another image, such as the live preview, which is updated from its own thread
+		}
+		
+		if(!EventQueue.isDispatchThread()) {
+			
+			//handled on the event thread, so the ROI is only changed (and ignoreRoiEvents only set) where the ROI events are received
+			EventQueue.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					imageUpdated(ip);
+				}
+			});
+			return;
+		}
+		
+		if(image.changes && rowCache != null) {
+			rowCache.stackModified();	//the pixels may have been edited (filtered, drawn on...), so the rows sampled so far are stale
+		}
 		
-		int currentFrame = image.getCurrentSlice();
-		IJ.log("Frame: " + currentFrame + ", change ROI to: " + interpolatedRois[currentFrame]);
-		image.setRoi(interpolatedRois[currentFrame]);
+		int currentFrame = getFrame(image);
+		Roi currentRoi = getInterpolatedRoi(currentFrame);
+		if(KymographLog.isDebug()) {
+			KymographLog.debug("Frame: %d, change ROI to: %s", currentFrame, currentRoi);
+		}
+		
+		ignoreRoiEvents = true;
+		image.setRoi(currentRoi);
+		ignoreRoiEvents = false;
 	}
 	
 	@Override
@@ -1085,7 +1404,9 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
         	
         	Point cursorLoc = canvas.getCursorLoc();
         	Roi currentRoi = image.getRoi();
-        	IJ.log("cursorLoc " + cursorLoc + " roi " + currentRoi);
+        	if(KymographLog.isDebug()) {
+        		KymographLog.debug("cursorLoc %s roi %s", cursorLoc, currentRoi);
+        	}
         	
         	if (currentRoi != null) {
         		
@@ -1094,15 +1415,19 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
     				if(anchorExists) {
     					
     					if(currentRoi.isHandle(canvas.screenX(cursorLoc.x), canvas.screenY(cursorLoc.y)) == anchorID) {
-    						IJ.log("don't move anchor");
+    						KymographLog.debug("don't move anchor");
     					}
     					else {
-    						IJ.log("mouse on handle: " + currentRoi.isHandle(canvas.screenX(cursorLoc.x), canvas.screenY(cursorLoc.y)) + " at location: " + cursorLoc.x + " , " + cursorLoc.y);
+    						if(KymographLog.isDebug()) {
+    							KymographLog.debug("mouse on handle: %d at location: %d , %d", currentRoi.isHandle(canvas.screenX(cursorLoc.x), canvas.screenY(cursorLoc.y)), cursorLoc.x, cursorLoc.y);
+    						}
     					}
     				}
     				else {
     					updateAnchor(currentRoi.isHandle(canvas.screenX(cursorLoc.x), canvas.screenY(cursorLoc.y)));	//set anchor point to current mouse location if it's on a vertex
-    					IJ.log("set handleID: " + anchorID + " at location: " + cursorLoc.x + " , " + cursorLoc.y);
+    					if(KymographLog.isDebug()) {
+    						KymographLog.debug("set handleID: %d at location: %d , %d", anchorID, cursorLoc.x, cursorLoc.y);
+    					}
     				}      	
     			}
         	}
@@ -1133,8 +1458,14 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 		anchorID = newAnchorID;
 		anchorExists = true;
 		
+		synchronized(interpolationLock) {
+			keyFrames.updateAnchor(anchorID);
+		}
+		
 		anchorLabel.setText("Anchor point set to: " + (anchorID + 1));
 		anchorLabel.setSize(anchorLabel.getPreferredSize());
+		
+		refreshPreview();	//realigns every row
 	}
 	
 	/**
@@ -1145,6 +1476,10 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 		anchorID = 0;
 		anchorExists = false;
 		
+		synchronized(interpolationLock) {
+			keyFrames.resetAnchor();
+		}
+		
 		anchorLabel.setText("Anchor not set");
 		anchorLabel.setSize(anchorLabel.getPreferredSize());
 	}
@@ -1156,8 +1491,14 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 	 */
 	@Override
 	public void windowClosed(WindowEvent e) {
-		IJ.log("Plugin closed");
+		KymographLog.info("Plugin closed");
 		removeListeners();
+		
+		if(preview != null) {
+			preview.close();
+		}
+		cancelKymograph();
+		interpolator.shutdownNow();
 		frame = null;
 	}
 
@@ -1171,7 +1512,9 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 		
 		Point cursorLoc = canvas.getCursorLoc();
     	Roi currentRoi = image.getRoi();
-    	IJ.log("cursorLoc " + cursorLoc + " roi " + currentRoi);
+    	if(KymographLog.isDebug()) {
+    		KymographLog.debug("cursorLoc %s roi %s", cursorLoc, currentRoi);
+    	}
     	
     	if (currentRoi != null) {
     		
@@ -1179,15 +1522,19 @@ public class Dynamic_Kymograph extends PlugInFrame implements PlugIn, ActionList
 				
 				if(anchorExists) {
 					if(currentRoi.isHandle(canvas.screenX(cursorLoc.x), canvas.screenY(cursorLoc.y)) == anchorID) {
-						IJ.log("don't move anchor");
+						KymographLog.debug("don't move anchor");
 					}
 					else {
-						IJ.log("mouse on handle: " + currentRoi.isHandle(canvas.screenX(cursorLoc.x), canvas.screenY(cursorLoc.y)) + " at location: " + cursorLoc.x + " , " + cursorLoc.y);
+						if(KymographLog.isDebug()) {
+							KymographLog.debug("mouse on handle: %d at location: %d , %d", currentRoi.isHandle(canvas.screenX(cursorLoc.x), canvas.screenY(cursorLoc.y)), cursorLoc.x, cursorLoc.y);
+						}
 					}
 				}
 				else {
 					updateAnchor(currentRoi.isHandle(canvas.screenX(cursorLoc.x), canvas.screenY(cursorLoc.y)));	//set anchor point to current mouse location if it's on a vertex
-					IJ.log("set handleID: " + anchorID + " at location: " + cursorLoc.x + " , " + cursorLoc.y);
+					if(KymographLog.isDebug()) {
+						KymographLog.debug("set handleID: %d at location: %d , %d", anchorID, cursorLoc.x, cursorLoc.y);
+					}
 				}      	
 			}
     	}
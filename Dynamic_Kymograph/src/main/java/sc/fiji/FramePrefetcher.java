@@ -0,0 +1,136 @@
+package sc.fiji;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ij.process.ImageProcessor;
+
+/**
+ * FramePrefetcher.java
+ * Purpose: reads frames of a stack in order on a background thread, a few frames ahead of the threads that sample them.
+ * Every channel of a frame is read together (see "KymographSampler.getProcessors").
+ * Meant for virtual stacks, where every getProcessor call reads and decodes a frame from disk: sampling overlaps with I/O, and only "depth" frames wait in memory at once.
+ * Any number of threads can take frames. Every frame is handed out exactly once.
+ *
+ * @version v1.6
+ */
+public class FramePrefetcher implements Runnable {
+	
+	private static final PrefetchedFrame END = new PrefetchedFrame(-1, null);	//put on the queue after the last frame
+	
+	private KymographSampler sampler;
+	private int firstFrame;
+	private int lastFrame;
+	
+	private BlockingQueue<PrefetchedFrame> queue;
+	private Thread decoder;
+	private volatile Throwable failure;
+	
+	/**
+	 * @param sampler reads the frames from the stack
+	 * @param firstFrame the first frame to read
+	 * @param lastFrame the last frame to read
+	 * @param depth the number of frames that can be read ahead
+	 */
+	public FramePrefetcher(KymographSampler sampler, int firstFrame, int lastFrame, int depth) {
+		
+		this.sampler = sampler;
+		this.firstFrame = firstFrame;
+		this.lastFrame = lastFrame;
+		
+		queue = new ArrayBlockingQueue<PrefetchedFrame>(Math.max(1, depth));
+	}
+	
+	/**
+	 * Starts reading frames on a background (daemon) thread.
+	 */
+	public void start() {
+		
+		decoder = new Thread(this, "Kymograph frame prefetcher");
+		decoder.setDaemon(true);
+		decoder.start();
+	}
+	
+	/**
+	 * Reads the frames in order. Blocks whenever "depth" frames are waiting to be taken.
+	 */
+	@Override
+	public void run() {
+		
+		try {
+			for (int frame = firstFrame; frame <= lastFrame; frame++) {
+				queue.put(new PrefetchedFrame(frame, sampler.getProcessors(frame)));
+			}
+		} catch (InterruptedException e) {
+			return;	//stopped
+		} catch (Throwable t) {
+			failure = t;
+		}
+		
+		try {
+			queue.put(END);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Takes the next frame, waiting for it to be read if needed.
+	 *
+	 * @return the next frame, or null once every frame has been taken
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IllegalStateException if reading a frame failed
+	 */
+	public PrefetchedFrame take() throws InterruptedException {
+		
+		PrefetchedFrame next = queue.take();
+		
+		if(next == END) {
+			queue.put(END);	//leave the end marker for the other threads taking frames
+			
+			if(failure != null) {
+				throw new IllegalStateException("FramePrefetcher error: could not read frame", failure);
+			}
+			return null;
+		}
+		
+		return next;
+	}
+	
+	/**
+	 * Stops reading frames and drops the frames waiting in the queue.
+	 */
+	public void stop() {
+		
+		if(decoder != null) {
+			decoder.interrupt();
+		}
+		queue.clear();
+	}
+	
+	/**
+	 * A frame number and the processors of its channels, read from the stack.
+	 */
+	public static class PrefetchedFrame {
+		
+		private int frame;
+		private ImageProcessor[] ips;
+		
+		PrefetchedFrame(int frame, ImageProcessor[] ips) {
+			this.frame = frame;
+			this.ips = ips;
+		}
+		
+		public int getFrame() {
+			return frame;
+		}
+		
+		/**
+		 * @return the processors of the frame, indexed by channel - 1
+		 */
+		public ImageProcessor[] getProcessors() {
+			return ips;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package sc.fiji;
+
+import java.util.Arrays;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+/**
+ * InterpolatedFrames.java
+ * Purpose: the interpolated polyline of every frame, kept as vertex coordinates in two flat float buffers (one slot per frame).
+ * Refilling frames after a key frame is edited writes into the same buffers, so dragging a ROI does not allocate a PolygonRoi per frame.
+ * ROIs are only built by "getRoi", when a frame is displayed.
+ *
+ * @version v1.6
+ */
+public class InterpolatedFrames {
+	
+	private int numSlots;
+	private int stride;	//space given to each slot in xpoints and ypoints (the largest number of vertices seen so far)
+	
+	private float[] xpoints;
+	private float[] ypoints;
+	private int[] npoints;	//0 for a slot that has not been filled
+	
+	/**
+	 * @param numSlots the number of slots. The plugin uses one slot per frame, indexed by frame number (slot 0 is not used)
+	 */
+	public InterpolatedFrames(int numSlots) {
+		
+		this.numSlots = numSlots;
+		stride = 0;
+		
+		xpoints = new float[0];
+		ypoints = new float[0];
+		npoints = new int[numSlots];
+	}
+	
+	/**
+	 * Fills slots with the interpolated vertices of frames firstFrame through lastFrame (see "KeyFrames.interpolate").
+	 * The buffers only grow when a key frame has more vertices than any before it.
+	 *
+	 * @param keyFrames the key frames to interpolate between
+	 * @param firstFrame the first frame to fill
+	 * @param lastFrame the last frame to fill
+	 * @param firstSlot the slot that firstFrame is written to
+	 */
+	public void fill(KeyFrames keyFrames, int firstFrame, int lastFrame, int firstSlot) {
+		
+		ensureStride(keyFrames.getMaxNPoints());
+		keyFrames.interpolate(firstFrame, lastFrame, xpoints, ypoints, npoints, firstSlot, stride);
+	}
+	
+	/**
+	 * Empties every slot.
+	 */
+	public void clear() {
+		Arrays.fill(npoints, 0);
+	}
+	
+	public int getNumSlots() {
+		return numSlots;
+	}
+	
+	/**
+	 * @param slot a slot
+	 *
+	 * @return the number of vertices in the slot, or 0 if it has not been filled
+	 */
+	public int getNPoints(int slot) {
+		return npoints[slot];
+	}
+	
+	/**
+	 * Compares the polylines in two slots, vertex by vertex.
+	 *
+	 * @param slot a slot
+	 * @param other the interpolated frames holding the other slot (may be these)
+	 * @param otherSlot the other slot
+	 *
+	 * @return true if both slots hold the same vertices (or are both empty)
+	 */
+	public boolean sameVertices(int slot, InterpolatedFrames other, int otherSlot) {
+		
+		int n = npoints[slot];
+		
+		if(n != other.npoints[otherSlot]) {
+			return false;
+		}
+		
+		int offset = slot * stride;
+		int otherOffset = otherSlot * other.stride;
+		
+		for(int i = 0; i < n; i++) {
+			if(xpoints[offset + i] != other.xpoints[otherOffset + i] || ypoints[offset + i] != other.ypoints[otherOffset + i]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Compares the polyline in a slot with vertex arrays.
+	 *
+	 * @param slot a slot
+	 * @param x x coordinates of the other polyline
+	 * @param y y coordinates of the other polyline (as many as x)
+	 *
+	 * @return true if the slot holds exactly these vertices
+	 */
+	public boolean sameVertices(int slot, float[] x, float[] y) {
+		
+		int n = npoints[slot];
+		
+		if(n != x.length) {
+			return false;
+		}
+		
+		int offset = slot * stride;
+		
+		for(int i = 0; i < n; i++) {
+			if(xpoints[offset + i] != x[i] || ypoints[offset + i] != y[i]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @param slot a slot
+	 *
+	 * @return a copy of the x coordinates of the polyline in the slot
+	 */
+	public float[] getXPoints(int slot) {
+		return Arrays.copyOfRange(xpoints, slot * stride, slot * stride + npoints[slot]);
+	}
+	
+	/**
+	 * @param slot a slot
+	 *
+	 * @return a copy of the y coordinates of the polyline in the slot
+	 */
+	public float[] getYPoints(int slot) {
+		return Arrays.copyOfRange(ypoints, slot * stride, slot * stride + npoints[slot]);
+	}
+	
+	/**
+	 * Builds a polyline ROI from a slot. The ROI gets its own copy of the vertices, so editing it does not change the slot.
+	 *
+	 * @param slot a slot
+	 *
+	 * @return the polyline ROI in the slot, or null if it has not been filled
+	 */
+	public Roi getRoi(int slot) {
+		
+		int n = npoints[slot];
+		
+		if(n == 0) {
+			return null;
+		}
+		
+		int offset = slot * stride;
+		
+		return new PolygonRoi(Arrays.copyOfRange(xpoints, offset, offset + n), Arrays.copyOfRange(ypoints, offset, offset + n), n, Roi.POLYLINE);
+	}
+	
+	/**
+	 * Builds the sampling plan of the polyline in a slot, straight from the buffers.
+	 *
+	 * @param slot a filled slot
+	 * @param lineWidth the line width to average over
+	 *
+	 * @return the sampling plan of the polyline in the slot
+	 */
+	public SamplingPlan getSamplingPlan(int slot, int lineWidth) {
+		return new SamplingPlan(xpoints, ypoints, slot * stride, npoints[slot], lineWidth);
+	}
+	
+	/**
+	 * Length (in whole pixels) of the polyline in a slot. The same as the length of its sampling plan, but computed from the vertices alone.
+	 *
+	 * @param slot a filled slot
+	 *
+	 * @return the number of samples along the polyline in the slot
+	 */
+	public int getLength(int slot) {
+		return (int) KeyFrames.polylineLength(xpoints, ypoints, slot * stride, npoints[slot]);
+	}
+	
+	/**
+	 * Distance (in whole pixels) along the polyline in a slot from its first vertex to the vertex anchorID.
+	 *
+	 * @param slot a filled slot
+	 * @param anchorID index of the anchor vertex
+	 *
+	 * @return the distance to the anchor vertex, measured the same way as the sampling walk
+	 */
+	public int getAnchorIndex(int slot, int anchorID) {
+		return (int) KeyFrames.polylineLength(xpoints, ypoints, slot * stride, Math.min(anchorID + 1, npoints[slot]));
+	}
+	
+	private void ensureStride(int minStride) {
+		
+		if(minStride > stride) {
+			
+			float[] newX = new float[numSlots * minStride];
+			float[] newY = new float[numSlots * minStride];
+			
+			for(int slot = 0; slot < numSlots; slot++) {
+				System.arraycopy(xpoints, slot * stride, newX, slot * minStride, npoints[slot]);
+				System.arraycopy(ypoints, slot * stride, newY, slot * minStride, npoints[slot]);
+			}
+			
+			xpoints = newX;
+			ypoints = newY;
+			stride = minStride;
+		}
+	}
+}
@@ -1,45 +1,81 @@
 package sc.fiji;
 
+import java.util.Arrays;
+
+import ij.gui.PolygonRoi;
 import ij.gui.Roi;
+import ij.process.FloatPolygon;
 
-//I haven't used this class in the plugin yet, but the idea was to store both the frame number and ROI in a KeyFrame object.
+//A key frame: the frame number and the vertices of the polyline ROI recorded on it. The vertices are kept as plain float arrays, and a ROI is only built when one is asked for.
 
 public class KeyFrame implements Comparable<KeyFrame>{
 	
 	private int frame;
 	
-	private Roi roi;
-	private int roiType;
+	private float[] xpoints;
+	private float[] ypoints;
+	private int npoints;
 	
 	public KeyFrame() {
 		
 		frame = 0;
 		
-		roi = null;
-		roiType = 0;
+		xpoints = new float[0];
+		ypoints = new float[0];
+		npoints = 0;
 	}
 	
 	public KeyFrame(int frame, Roi roi) {
+		this(frame, roi.getFloatPolygon());
+	}
+	
+	private KeyFrame(int frame, FloatPolygon polygon) {
+		this(frame, polygon.xpoints, polygon.ypoints, polygon.npoints);
+	}
+	
+	public KeyFrame(int frame, float[] xpoints, float[] ypoints, int npoints) {
 		this.frame = frame;
 		
-		this.roi = (Roi) roi.clone();
-		this.roiType = this.roi.getType();
+		this.xpoints = Arrays.copyOf(xpoints, npoints);
+		this.ypoints = Arrays.copyOf(ypoints, npoints);
+		this.npoints = npoints;
 	}
-
+	
 	public int getFrame() {
 		return frame;
 	}
 	
+	/**
+	 * @return the x coordinates of the vertices. Do not modify.
+	 */
+	public float[] getXPoints() {
+		return xpoints;
+	}
+	
+	/**
+	 * @return the y coordinates of the vertices. Do not modify.
+	 */
+	public float[] getYPoints() {
+		return ypoints;
+	}
+	
+	public int getNPoints() {
+		return npoints;
+	}
+	
+	/**
+	 * @return a new polyline ROI through the vertices of this key frame.
+	 */
 	public Roi getRoi() {
-		return roi;
+		return new PolygonRoi(Arrays.copyOf(xpoints, npoints), Arrays.copyOf(ypoints, npoints), npoints, Roi.POLYLINE);
 	}
 	
 	public int getType() {
-		return roiType;
+		return Roi.POLYLINE;
 	}
 	
 	@Override
 	public int compareTo(KeyFrame o) {
-		return frame - o.getFrame();
+		return Integer.compare(frame, o.getFrame());
 	}
 }
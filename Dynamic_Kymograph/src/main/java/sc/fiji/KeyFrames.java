@@ -1,41 +1,394 @@
 package sc.fiji;
 
-import java.util.TreeSet;
+import java.util.Arrays;
 
-//I hav't used this in the plugin, but the idea is to make a more appropriate data type to store the KeyFrames rather than a HashMap (which is what the plugin currently uses.)
+//The key frames recorded by the user, sorted by frame. Backed by a sorted int[] of frame numbers and the vertex arrays of each key frame,
+//so that finding the key frames around any frame is a binary search, O(log k).
+//Also keeps track of the longest key frame ROI and the longest distance to the anchor point, which are used to size the kymograph.
+//Vertices move between key frames either linearly or along a monotone cubic (a piecewise cubic Hermite spline, as in "pchip", through every run of key frames with the same number of vertices),
+//which follows curved or accelerating motion with fewer key frames without overshooting them. The cubic coefficients of each pair of key frames are kept,
+//and only those near a key frame are recomputed when it is recorded, so interpolating any frame costs O(vertices) in either mode.
 
 public class KeyFrames {
-
-	private TreeSet<KeyFrame> keyFrames;
+	
+	static final int INITIAL_CAPACITY = 16;
+	
+	public static final int LINEAR = 0;
+	public static final int CUBIC = 1;
+	static final String[] INTERPOLATION_NAMES = {"linear", "cubic"};
+	
+	static final String PREF_KEY = "dynamic_kymograph.interpolation";
+	
+	private int[] frames;
+	private float[][] xpoints;
+	private float[][] ypoints;
+	private double[] roiLengths;
+	private int[] anchorIndices;
+	private int size;
+	
+	private int interpolation;
+	//cubic only: the tangent (in pixels per frame) of each vertex of each key frame, null if the key frame has no neighbour with the same number of vertices,
+	//and the coefficients c1, c2, c3 of each vertex (in turn) of the cubic from each key frame to the next, p(t) = p0 + c1 t + c2 t^2 + c3 t^3 for t from 0 to 1,
+	//null if the two key frames have different numbers of vertices
+	private float[][] tangentX;
+	private float[][] tangentY;
+	private float[][] coefficientsX;
+	private float[][] coefficientsY;
 	
 	private int anchorID;
 	private boolean anchorExists;
 	
 	private double maxRoiLength;
 	private int maxAnchorIndex;
+	private int maxNPoints;
 	
 	public KeyFrames() {
 		
-		keyFrames = new TreeSet<KeyFrame>();
+		frames = new int[INITIAL_CAPACITY];
+		xpoints = new float[INITIAL_CAPACITY][];
+		ypoints = new float[INITIAL_CAPACITY][];
+		roiLengths = new double[INITIAL_CAPACITY];
+		anchorIndices = new int[INITIAL_CAPACITY];
+		size = 0;
+		
+		interpolation = LINEAR;
+		tangentX = new float[INITIAL_CAPACITY][];
+		tangentY = new float[INITIAL_CAPACITY][];
+		coefficientsX = new float[INITIAL_CAPACITY][];
+		coefficientsY = new float[INITIAL_CAPACITY][];
 		
 		anchorID = 0;
 		anchorExists = false;
 		
 		maxRoiLength = 0;
 		maxAnchorIndex = 0;
+		maxNPoints = 0;
 	}
 	
+	/**
+	 * Records a key frame. Replaces the key frame already recorded on the same frame, if any.
+	 * Updates the longest ROI length and anchor index incrementally (a full recount is only needed when the longest key frame gets shorter).
+	 * With cubic interpolation, also updates the cubics near the key frame (see "getEditReach").
+	 * 
+	 * @param kf the key frame to record
+	 * 
+	 * @return true if this is a new key frame, false if it replaced an existing one
+	 */
 	public boolean addKeyFrame(KeyFrame kf) {
 		
-		boolean success = keyFrames.add(kf);
+		int index = indexOf(kf.getFrame());
+		boolean success = index < 0;
 		
 		if(success) {
-			//see if you need to update length and anchor index
+			index = -(index + 1);
+			ensureCapacity(size + 1);
+			
+			System.arraycopy(frames, index, frames, index + 1, size - index);
+			System.arraycopy(xpoints, index, xpoints, index + 1, size - index);
+			System.arraycopy(ypoints, index, ypoints, index + 1, size - index);
+			System.arraycopy(roiLengths, index, roiLengths, index + 1, size - index);
+			System.arraycopy(anchorIndices, index, anchorIndices, index + 1, size - index);
+			System.arraycopy(tangentX, index, tangentX, index + 1, size - index);
+			System.arraycopy(tangentY, index, tangentY, index + 1, size - index);
+			System.arraycopy(coefficientsX, index, coefficientsX, index + 1, size - index);
+			System.arraycopy(coefficientsY, index, coefficientsY, index + 1, size - index);
+			size++;
+		}
+		
+		double oldLength = success ? 0 : roiLengths[index];
+		int oldAnchorIndex = success ? 0 : anchorIndices[index];
+		
+		frames[index] = kf.getFrame();
+		xpoints[index] = kf.getXPoints();
+		ypoints[index] = kf.getYPoints();
+		roiLengths[index] = polylineLength(xpoints[index], ypoints[index], xpoints[index].length);
+		maxNPoints = Math.max(maxNPoints, xpoints[index].length);
+		anchorIndices[index] = (int) polylineLength(xpoints[index], ypoints[index], anchorID + 1);
+		
+		//see if you need to update length and anchor index
+		if((oldLength == maxRoiLength && roiLengths[index] < oldLength) || (oldAnchorIndex == maxAnchorIndex && anchorIndices[index] < oldAnchorIndex)) {
+			recountMaxima();
+		}
+		else {
+			maxRoiLength = Math.max(maxRoiLength, roiLengths[index]);
+			maxAnchorIndex = Math.max(maxAnchorIndex, anchorIndices[index]);
+		}
+		
+		if(interpolation == CUBIC) {
+			updateCubics(index, index);
 		}
 		
 		return success;
 	}
 	
+	/**
+	 * Removes all key frames. The anchor point and the interpolation are kept.
+	 */
+	public void clear() {
+		
+		Arrays.fill(xpoints, 0, size, null);
+		Arrays.fill(ypoints, 0, size, null);
+		clearCubics();
+		size = 0;
+		
+		maxRoiLength = 0;
+		maxAnchorIndex = 0;
+		maxNPoints = 0;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * @param frame a frame number
+	 * 
+	 * @return the index of the key frame recorded on frame, or (-(insertion point) - 1) if there is none (see Arrays.binarySearch)
+	 */
+	public int indexOf(int frame) {
+		return Arrays.binarySearch(frames, 0, size, frame);
+	}
+	
+	public boolean contains(int frame) {
+		return indexOf(frame) >= 0;
+	}
+	
+	/**
+	 * @param frame a frame number
+	 * 
+	 * @return the index of the last key frame on or before frame, or -1 if there is none
+	 */
+	public int floorIndex(int frame) {
+		int index = indexOf(frame);
+		return index >= 0 ? index : -(index + 1) - 1;
+	}
+	
+	/**
+	 * @param frame a frame number
+	 * 
+	 * @return the index of the first key frame on or after frame, or -1 if there is none
+	 */
+	public int ceilingIndex(int frame) {
+		int index = indexOf(frame);
+		if(index >= 0) {
+			return index;
+		}
+		index = -(index + 1);
+		return index < size ? index : -1;
+	}
+	
+	/**
+	 * @param index index of a key frame (0 through size() - 1, in frame order)
+	 * 
+	 * @return the frame number of the key frame
+	 */
+	public int getFrame(int index) {
+		return frames[index];
+	}
+	
+	/**
+	 * @param index index of a key frame
+	 * 
+	 * @return the x coordinates of the vertices of the key frame. Do not modify.
+	 */
+	public float[] getXPoints(int index) {
+		return xpoints[index];
+	}
+	
+	/**
+	 * @param index index of a key frame
+	 * 
+	 * @return the y coordinates of the vertices of the key frame. Do not modify.
+	 */
+	public float[] getYPoints(int index) {
+		return ypoints[index];
+	}
+	
+	/**
+	 * @param index index of a key frame
+	 * 
+	 * @return the number of vertices of the key frame
+	 */
+	public int getNPoints(int index) {
+		return xpoints[index].length;
+	}
+	
+	/**
+	 * @param index index of a key frame
+	 * 
+	 * @return the key frame (the vertex arrays are copied)
+	 */
+	public KeyFrame getKeyFrame(int index) {
+		return new KeyFrame(frames[index], xpoints[index], ypoints[index], xpoints[index].length);
+	}
+	
+	/**
+	 * @return a copy of these key frames, their anchor point and their interpolation, unaffected by later edits
+	 */
+	public KeyFrames copy() {
+		
+		KeyFrames copy = new KeyFrames();
+		
+		for(int index = 0; index < size; index++) {
+			copy.addKeyFrame(getKeyFrame(index));
+		}
+		
+		copy.setInterpolation(interpolation);	//after the key frames, so the cubics are computed once
+		
+		if(anchorExists) {
+			copy.updateAnchor(anchorID);
+		}
+		
+		return copy;
+	}
+	
+	/**
+	 * @return at least the number of vertices of the largest key frame (only goes down when the key frames are cleared). Buffers of this size hold any interpolated frame.
+	 */
+	public int getMaxNPoints() {
+		return maxNPoints;
+	}
+	
+	/**
+	 * Writes the interpolated vertices of frames firstFrame through lastFrame (inclusive) into flat buffers provided by the caller. Nothing is allocated.
+	 * Frame f is written to slot s = firstSlot + (f - firstFrame): its vertices go to x and y starting at s * stride, and its number of vertices to npoints[s].
+	 * Frames before the first key frame (after the last key frame) get the first (last) key frame. Key frames are copied exactly.
+	 * Frames between two key frames with different numbers of vertices cannot be interpolated and get the earlier key frame.
+	 * Other frames are interpolated linearly or along the cubics, see "setInterpolation".
+	 * 
+	 * @param firstFrame the first frame to write
+	 * @param lastFrame the last frame to write
+	 * @param x buffer for the x coordinates
+	 * @param y buffer for the y coordinates
+	 * @param npoints buffer for the number of vertices of each frame
+	 * @param firstSlot the slot that firstFrame is written to
+	 * @param stride the space given to each slot in x and y. Must be at least getMaxNPoints()
+	 * 
+	 * @return false if there are no key frames (nothing is written)
+	 */
+	public boolean interpolate(int firstFrame, int lastFrame, float[] x, float[] y, int[] npoints, int firstSlot, int stride) {
+		
+		if(size == 0) {
+			return false;
+		}
+		
+		int index = floorIndex(firstFrame);	//last key frame on or before frame
+		
+		for(int frame = firstFrame; frame <= lastFrame; frame++) {
+			
+			while(index + 1 < size && frames[index + 1] <= frame) {
+				index++;
+			}
+			
+			int slot = firstSlot + (frame - firstFrame);
+			int offset = slot * stride;
+			
+			int startIndex = Math.max(index, 0);
+			int n = xpoints[startIndex].length;
+			npoints[slot] = n;
+			
+			if(index < 0 || index == size - 1 || frames[index] == frame || xpoints[index + 1].length != n) {
+				System.arraycopy(xpoints[startIndex], 0, x, offset, n);
+				System.arraycopy(ypoints[startIndex], 0, y, offset, n);
+			}
+			else {
+				float[] startX = xpoints[index];
+				float[] startY = ypoints[index];
+				float[] endX = xpoints[index + 1];
+				float[] endY = ypoints[index + 1];
+				
+				int dFrame = frames[index + 1] - frames[index];
+				int k = frame - frames[index];
+				
+				if(interpolation == CUBIC) {
+					float[] cX = coefficientsX[index];
+					float[] cY = coefficientsY[index];
+					float t = (float) k / dFrame;
+					
+					for(int i = 0, c = 0; i < n; i++, c += 3) {
+						x[offset + i] = startX[i] + t * (cX[c] + t * (cX[c + 1] + t * cX[c + 2]));
+						y[offset + i] = startY[i] + t * (cY[c] + t * (cY[c + 1] + t * cY[c + 2]));
+					}
+					continue;
+				}
+				
+				for(int i = 0; i < n; i++) {
+					float difX = (endX[i] - startX[i]) /dFrame;
+					float difY = (endY[i] - startY[i]) /dFrame;
+					x[offset + i] = startX[i] + difX * k;
+					y[offset + i] = startY[i] + difY * k;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Chooses how vertices move between key frames. Linear interpolation moves each vertex at a constant speed from one key frame to the next.
+	 * Cubic interpolation moves it along a monotone cubic through the key frames around it, so its speed changes smoothly, and it never goes past
+	 * the positions of the key frames before and after it (no overshoot). Switching to cubic computes the cubics of every key frame, O(key frames * vertices).
+	 * 
+	 * @param newInterpolation LINEAR or CUBIC
+	 */
+	public void setInterpolation(int newInterpolation) {
+		
+		if(newInterpolation != LINEAR && newInterpolation != CUBIC) {
+			throw new IllegalArgumentException("KeyFrames error: unknown interpolation " + newInterpolation);
+		}
+		
+		if(newInterpolation == interpolation) {
+			return;
+		}
+		
+		interpolation = newInterpolation;
+		
+		if(interpolation == CUBIC) {
+			updateCubics(0, size - 1);
+		}
+		else {
+			clearCubics();
+		}
+	}
+	
+	public int getInterpolation() {
+		return interpolation;
+	}
+	
+	/**
+	 * When the key frames at indices i through j are recorded or changed, only the frames from the key frame at i - getEditReach() to the key frame at j + getEditReach()
+	 * (or the ends of the stack) can change: the neighbouring key frames with linear interpolation, and three key frames each way with cubic interpolation
+	 * (a key frame changes the tangents of the key frames up to two away, which shape the cubics one key frame further).
+	 * 
+	 * @return the number of key frames on each side of an edited key frame whose interpolated frames can change
+	 */
+	public int getEditReach() {
+		return interpolation == CUBIC ? 3 : 1;
+	}
+	
+	/**
+	 * Reads an interpolation name.
+	 * 
+	 * @param name "linear" or "cubic" (in any case)
+	 * @param defaultInterpolation the interpolation returned if the name is not an interpolation
+	 * 
+	 * @return LINEAR or CUBIC
+	 */
+	public static int parseInterpolation(String name, int defaultInterpolation) {
+		
+		for(int i = LINEAR; i <= CUBIC; i++) {
+			if(INTERPOLATION_NAMES[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		
+		return defaultInterpolation;
+	}
+	
 	public int getAnchorID() {
 		return anchorID;
 	}
@@ -44,10 +397,16 @@ public class KeyFrames {
 		return anchorExists;
 	}
 	
+	/**
+	 * @return the length (in pixels) of the longest key frame polyline.
+	 */
 	public double getMaxRoiLength() {
 		return maxRoiLength;
 	}
 	
+	/**
+	 * @return the longest distance (in whole pixels) along a key frame polyline from its first vertex to its anchor point.
+	 */
 	public int getMaxAnchorIndex() {
 		return maxAnchorIndex;
 	}
@@ -55,5 +414,262 @@ public class KeyFrames {
 	public void updateAnchor(int newAnchorID) {
 		anchorID = newAnchorID;
 		anchorExists = true;
+		
+		recountAnchorIndices();
+	}
+	
+	public void resetAnchor() {
+		anchorID = 0;
+		anchorExists = false;
+		
+		recountAnchorIndices();
+	}
+	
+	@Override
+	public String toString() {
+		return "KeyFrames" + Arrays.toString(Arrays.copyOf(frames, size));
+	}
+	
+	/**
+	 * Length of the polyline through the first n vertices, measured the same way as the sampling walk (vertices rounded to whole pixels).
+	 * 
+	 * @param x x coordinates of the vertices
+	 * @param y y coordinates of the vertices
+	 * @param n number of vertices to measure through (clamped to the number of vertices)
+	 * 
+	 * @return the length of the polyline through the first n vertices
+	 */
+	static double polylineLength(float[] x, float[] y, int n) {
+		return polylineLength(x, y, 0, Math.min(n, x.length));
+	}
+	
+	/**
+	 * Length of the polyline through n vertices stored in a flat buffer, measured the same way as the sampling walk (vertices rounded to whole pixels).
+	 * 
+	 * @param x x coordinates of the vertices
+	 * @param y y coordinates of the vertices
+	 * @param offset index of the first vertex in x and y
+	 * @param n number of vertices to measure through
+	 * 
+	 * @return the length of the polyline through the n vertices
+	 */
+	static double polylineLength(float[] x, float[] y, int offset, int n) {
+		
+		double length = 0;
+		
+		for(int i = offset; i < offset + n - 1; i++) {
+			int dx = round(x[i + 1]) - round(x[i]);
+			int dy = round(y[i + 1]) - round(y[i]);
+			length += Math.sqrt(dx*dx+dy*dy);
+		}
+		
+		return length;
+	}
+	
+	/**
+	 * Rounds a sub-pixel coordinate to a whole pixel, the same way ImageJ does for the integer coordinates of a polyline.
+	 */
+	static int round(float coordinate) {
+		return (int) Math.floor(coordinate + 0.5);
+	}
+	
+	/**
+	 * Recomputes the cubics after the key frames at firstIndex through lastIndex were recorded or changed:
+	 * the tangents of the key frames up to two away (they depend on the neighbouring key frames, and on the key frame after next at the end of a run),
+	 * and the cubics from one key frame before those to the last of them.
+	 * 
+	 * @param firstIndex index of the first key frame recorded or changed
+	 * @param lastIndex index of the last key frame recorded or changed
+	 */
+	private void updateCubics(int firstIndex, int lastIndex) {
+		
+		int first = Math.max(firstIndex - 2, 0);
+		int last = Math.min(lastIndex + 2, size - 1);
+		
+		for(int i = first; i <= last; i++) {
+			updateTangents(i);
+		}
+		
+		for(int i = Math.max(first - 1, 0); i <= Math.min(last, size - 2); i++) {
+			updateCoefficients(i);
+		}
+	}
+	
+	/**
+	 * Helper method for "updateCubics". Computes the tangents of the vertices of the key frame at index.
+	 * 
+	 * @param index index of the key frame
+	 */
+	private void updateTangents(int index) {
+		
+		int n = xpoints[index].length;
+		boolean hasPrevious = index > 0 && xpoints[index - 1].length == n;
+		boolean hasNext = index < size - 1 && xpoints[index + 1].length == n;
+		
+		if(!hasPrevious && !hasNext) {
+			tangentX[index] = null;
+			tangentY[index] = null;
+			return;
+		}
+		
+		float[] tX = new float[n];
+		float[] tY = new float[n];
+		
+		for(int i = 0; i < n; i++) {
+			tX[i] = tangent(xpoints, index, i, hasPrevious, hasNext);
+			tY[i] = tangent(ypoints, index, i, hasPrevious, hasNext);
+		}
+		
+		tangentX[index] = tX;
+		tangentY[index] = tY;
+	}
+	
+	/**
+	 * Helper method for "updateTangents". The tangent of one coordinate of one vertex, as in "pchip": inside a run of key frames,
+	 * the weighted harmonic mean of the slopes to the previous and next key frames, or 0 where the vertex turns back (so it does not overshoot).
+	 * At either end of a run, the one-sided three-point estimate, limited so the vertex still does not overshoot.
+	 * 
+	 * @param points the x or y coordinates of every key frame
+	 * @param index index of the key frame
+	 * @param i index of the vertex
+	 * @param hasPrevious true if the previous key frame has the same number of vertices
+	 * @param hasNext true if the next key frame has the same number of vertices
+	 * 
+	 * @return the tangent, in pixels per frame
+	 */
+	private float tangent(float[][] points, int index, int i, boolean hasPrevious, boolean hasNext) {
+		
+		if(hasPrevious && hasNext) {
+			
+			double h0 = frames[index] - frames[index - 1];
+			double h1 = frames[index + 1] - frames[index];
+			double d0 = (points[index][i] - points[index - 1][i]) / h0;
+			double d1 = (points[index + 1][i] - points[index][i]) / h1;
+			
+			if(d0 * d1 <= 0) {
+				return 0;
+			}
+			
+			double w0 = 2 * h1 + h0;
+			double w1 = h1 + 2 * h0;
+			
+			return (float) ((w0 + w1) / (w0 / d0 + w1 / d1));
+		}
+		
+		int near = hasNext ? index + 1 : index - 1;
+		int far = hasNext ? index + 2 : index - 2;
+		
+		double h0 = Math.abs(frames[near] - frames[index]);
+		double d0 = (points[near][i] - points[index][i]) / (frames[near] - frames[index]);
+		
+		if(far < 0 || far >= size || points[far].length != points[index].length) {
+			return (float) d0;	//a run of two key frames: linear
+		}
+		
+		double h1 = Math.abs(frames[far] - frames[near]);
+		double d1 = (points[far][i] - points[near][i]) / (frames[far] - frames[near]);
+		double m = ((2 * h0 + h1) * d0 - h0 * d1) / (h0 + h1);
+		
+		if(m * d0 <= 0) {
+			return 0;
+		}
+		if(d0 * d1 < 0 && Math.abs(m) > Math.abs(3 * d0)) {
+			return (float) (3 * d0);
+		}
+		
+		return (float) m;
+	}
+	
+	/**
+	 * Helper method for "updateCubics". Computes the cubic of each vertex from the key frame at index to the next, from their positions and tangents.
+	 * 
+	 * @param index index of the key frame
+	 */
+	private void updateCoefficients(int index) {
+		
+		int n = xpoints[index].length;
+		
+		if(xpoints[index + 1].length != n) {
+			coefficientsX[index] = null;
+			coefficientsY[index] = null;
+			return;
+		}
+		
+		int dFrame = frames[index + 1] - frames[index];
+		coefficientsX[index] = coefficients(xpoints[index], xpoints[index + 1], tangentX[index], tangentX[index + 1], dFrame);
+		coefficientsY[index] = coefficients(ypoints[index], ypoints[index + 1], tangentY[index], tangentY[index + 1], dFrame);
+	}
+	
+	/**
+	 * Helper method for "updateCoefficients". The Hermite cubic of each vertex, for t = (frame - start frame) / dFrame from 0 to 1.
+	 * 
+	 * @param start the coordinates of the vertices on the start key frame
+	 * @param end the coordinates of the vertices on the end key frame
+	 * @param startTangent the tangents of the vertices on the start key frame, in pixels per frame
+	 * @param endTangent the tangents of the vertices on the end key frame, in pixels per frame
+	 * @param dFrame the number of frames from the start key frame to the end key frame
+	 * 
+	 * @return c1, c2, c3 of each vertex in turn
+	 */
+	private static float[] coefficients(float[] start, float[] end, float[] startTangent, float[] endTangent, int dFrame) {
+		
+		float[] c = new float[3 * start.length];
+		
+		for(int i = 0; i < start.length; i++) {
+			double dp = end[i] - start[i];
+			double m0 = startTangent[i] * (double) dFrame;
+			double m1 = endTangent[i] * (double) dFrame;
+			
+			c[3 * i] = (float) m0;
+			c[3 * i + 1] = (float) (3 * dp - 2 * m0 - m1);
+			c[3 * i + 2] = (float) (m0 + m1 - 2 * dp);
+		}
+		
+		return c;
+	}
+	
+	private void clearCubics() {
+		
+		Arrays.fill(tangentX, 0, size, null);
+		Arrays.fill(tangentY, 0, size, null);
+		Arrays.fill(coefficientsX, 0, size, null);
+		Arrays.fill(coefficientsY, 0, size, null);
+	}
+	
+	private void recountAnchorIndices() {
+		
+		for(int i = 0; i < size; i++) {
+			anchorIndices[i] = (int) polylineLength(xpoints[i], ypoints[i], anchorID + 1);
+		}
+		
+		recountMaxima();
+	}
+	
+	private void recountMaxima() {
+		
+		maxRoiLength = 0;
+		maxAnchorIndex = 0;
+		
+		for(int i = 0; i < size; i++) {
+			maxRoiLength = Math.max(maxRoiLength, roiLengths[i]);
+			maxAnchorIndex = Math.max(maxAnchorIndex, anchorIndices[i]);
+		}
+	}
+	
+	private void ensureCapacity(int capacity) {
+		
+		if(capacity > frames.length) {
+			int newCapacity = Math.max(capacity, 2 * frames.length);
+			
+			frames = Arrays.copyOf(frames, newCapacity);
+			xpoints = Arrays.copyOf(xpoints, newCapacity);
+			ypoints = Arrays.copyOf(ypoints, newCapacity);
+			roiLengths = Arrays.copyOf(roiLengths, newCapacity);
+			anchorIndices = Arrays.copyOf(anchorIndices, newCapacity);
+			tangentX = Arrays.copyOf(tangentX, newCapacity);
+			tangentY = Arrays.copyOf(tangentY, newCapacity);
+			coefficientsX = Arrays.copyOf(coefficientsX, newCapacity);
+			coefficientsY = Arrays.copyOf(coefficientsY, newCapacity);
+		}
 	}
 }
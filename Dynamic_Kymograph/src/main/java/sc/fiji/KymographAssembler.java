@@ -0,0 +1,764 @@
+package sc.fiji;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.measure.Calibration;
+
+import ij.process.ImageProcessor;
+
+/**
+ * KymographAssembler.java
+ * Purpose: assembles kymographs from a stack and the key frames of one or more traced filaments (tracks), without any user interface.
+ * All tracks are assembled in a single pass over the stack: each frame is read once and sampled for every track before moving on.
+ * On a hyperstack, each frame is a time point, and every channel is sampled with the same sampling plan into a kymograph with one image per channel.
+ * Used by the plugin window ("Make kymograph", "Make all kymographs") and by the headless batch runner ("KymographBatch").
+ * An assembly can report its progress on the ImageJ progress bar, and can be cancelled from another thread.
+ * It can also time each stage of the assembly (see "KymographMetrics").
+ *
+ * @version v1.6
+ */
+public class KymographAssembler {
+	
+	static final int CHUNKS_PER_THREAD = 4; //splits the frames into more row ranges than threads so that uneven ROI lengths still balance out
+	static final int PREFETCH_FRAMES_PER_THREAD = 2; //streaming mode reads at most this many frames per sampling thread ahead
+	
+	private KymographSampler sampler;
+	private List<Track> tracks;
+	private int numFrames;
+	private int numChannels;
+	
+	private int lineWidth;
+	private int numThreads;
+	private boolean streaming;
+	private RowCache rowCache;
+	private int rowStamp;	//the modification stamp of the stack when the assembly started (see "RowCache")
+	
+	private boolean showProgress;
+	private AtomicInteger framesDone;
+	private int progressTotal;
+	private int progressStep;
+	private volatile boolean cancelled;
+	
+	private KymographMetrics metrics;	//null: not timed
+	
+	/**
+	 * Creates an assembler with no tracks (see "addTrack").
+	 * 
+	 * @param sampler samples the frames of the stack
+	 */
+	public KymographAssembler(KymographSampler sampler) {
+		
+		this.sampler = sampler;
+		tracks = new ArrayList<Track>();
+		
+		numFrames = sampler.getNumFrames();
+		numChannels = sampler.getNumChannels();
+		
+		lineWidth = 1;
+		numThreads = 1;
+		streaming = false;
+		
+		showProgress = false;
+		framesDone = new AtomicInteger();
+		cancelled = false;
+	}
+	
+	/**
+	 * Creates an assembler for a single track.
+	 * 
+	 * @param sampler samples the frames of the stack
+	 * @param keyFrames the key frames to interpolate between
+	 * @param interpolatedFrames the interpolated polyline of every frame (one slot per frame, indexed by frame number), or null to interpolate each frame when it is sampled
+	 */
+	public KymographAssembler(KymographSampler sampler, KeyFrames keyFrames, InterpolatedFrames interpolatedFrames) {
+		
+		this(sampler);
+		addTrack(keyFrames, interpolatedFrames);
+	}
+	
+	/**
+	 * Adds a track: the key frames of one traced filament. Its kymograph is aligned on its own anchor point.
+	 * 
+	 * @param keyFrames the key frames to interpolate between
+	 * @param interpolatedFrames the interpolated polyline of every frame (one slot per frame, indexed by frame number), or null to interpolate each frame when it is sampled
+	 */
+	public void addTrack(KeyFrames keyFrames, InterpolatedFrames interpolatedFrames) {
+		tracks.add(new Track(keyFrames, interpolatedFrames));
+	}
+	
+	public int getNumTracks() {
+		return tracks.size();
+	}
+	
+	public void setLineWidth(int lineWidth) {
+		this.lineWidth = lineWidth;
+	}
+	
+	/**
+	 * @param numThreads the number of threads. 1 (or less) assembles the kymographs serially
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(1, numThreads);
+	}
+	
+	/**
+	 * @param streaming true to read frames in order on a background thread, a few frames ahead of sampling (see "FramePrefetcher")
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+	
+	/**
+	 * @param rowCache keeps the sampled rows between runs, so frames whose ROI did not change are not sampled again (null to sample every frame)
+	 */
+	public void setRowCache(RowCache rowCache) {
+		this.rowCache = rowCache;
+	}
+	
+	/**
+	 * @param showProgress true to show the progress of the assembly on the ImageJ progress bar
+	 */
+	public void setShowProgress(boolean showProgress) {
+		this.showProgress = showProgress;
+	}
+	
+	/**
+	 * @param metrics collects the time spent in each stage, the frames and the pixels sampled, and the bytes allocated by the worker threads (null to not time the assembly)
+	 */
+	public void setMetrics(KymographMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Asks a running assembly to stop. Can be called from any thread. The assembly stops after the frames being sampled, and throws a CancellationException.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	/**
+	 * @return true if the assembly was cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * Assembles the kymograph of the first track.
+	 * 
+	 * @return the kymograph, with one image per channel
+	 */
+	public ImageStack assemble() {
+		return assembleAll()[0];
+	}
+	
+	/**
+	 * Assembles the kymograph of every track in one pass over the stack: row "frame - 1" of a kymograph holds the pixels along the track's interpolated ROI on that frame
+	 * (frames 1 through numFrames on rows 0 through numFrames - 1),
+	 * averaged over the line width and aligned on the track's anchor point.
+	 * 
+	 * @return the kymograph of each track (with one image per channel), in the order the tracks were added
+	 * 
+	 * @throws CancellationException if the assembly was cancelled (see "cancel")
+	 * @throws RuntimeException if the assembly failed on any thread
+	 */
+	public ImageStack[] assembleAll() {
+		
+		int kymoHeight = numFrames;
+		rowStamp = rowCache != null ? rowCache.getStamp() : 0;
+		startProgress(numFrames);
+		ImageStack[] kymos = new ImageStack[tracks.size()];
+		
+		for(int t = 0; t < tracks.size(); t++) {
+			
+			Track track = tracks.get(t);
+			
+			//find longest ROI and the ROI with the furthest distance to the anchor point, over every interpolated frame
+			measureFrames(track);
+			
+			track.kymos = new ImageProcessor[numChannels];
+			kymos[t] = new ImageStack(track.kymoLength, kymoHeight);
+			
+			for(int channel = 0; channel < numChannels; channel++) {
+				track.kymos[channel] = sampler.createKymograph(track.kymoLength, kymoHeight);
+				kymos[t].addSlice(track.kymos[channel]);
+			}
+		}
+		
+		if(streaming && !allRowsCached()) {	//a frame that is only re-aligned is never read, so there is nothing to read ahead
+			assembleRowsStreaming();
+		}
+		else if(numThreads > 1 && numFrames > 1) {
+			assembleRowsParallel(1, numFrames);
+		}
+		else {
+			assembleRows(1, numFrames);
+		}
+		
+		endProgress();
+		
+		return kymos;
+	}
+	
+	/**
+	 * Re-assembles frames firstFrame through lastFrame into a kymograph assembled before, leaving its other rows as they are.
+	 * Used by the live preview (see "KymographPreview") to re-sample only the frames whose interpolated ROI changed after a key frame was edited.
+	 * The new rows only line up with the old ones if the kymograph keeps the same width and anchor alignment. The frames are not measured again here
+	 * (that would cost a pass over the whole stack): the caller checks that with "measureFrames", on the changed frames only.
+	 * 
+	 * @param kymo the kymograph of the track, from an earlier "assemble"
+	 * @param maxAnchorIndex the anchor alignment of that kymograph (see "getMaxAnchorIndex"), which the changed frames keep
+	 * @param firstFrame the first frame (row) to re-assemble
+	 * @param lastFrame the last frame (row) to re-assemble
+	 * 
+	 * @return true if the rows were re-assembled, false if the kymograph does not have the channels of the stack and has to be assembled again
+	 * 
+	 * @throws IllegalStateException if the assembler does not have exactly one track
+	 * @throws CancellationException if the assembly was cancelled (see "cancel")
+	 */
+	public boolean reassembleRows(ImageStack kymo, int maxAnchorIndex, int firstFrame, int lastFrame) {
+		
+		if(tracks.size() != 1) {
+			throw new IllegalStateException("KymographAssembler error: rows can only be re-assembled for a single track");
+		}
+		
+		Track track = tracks.get(0);
+		
+		if(kymo.getSize() != numChannels) {
+			return false;
+		}
+		
+		track.kymoLength = kymo.getWidth();
+		track.maxAnchorIndex = maxAnchorIndex;
+		
+		track.kymos = new ImageProcessor[numChannels];
+		
+		for(int channel = 0; channel < numChannels; channel++) {
+			track.kymos[channel] = kymo.getProcessor(channel + 1);	//shares the pixels of the kymograph
+		}
+		
+		firstFrame = Math.max(firstFrame, 1);
+		lastFrame = Math.min(lastFrame, numFrames);
+		rowStamp = rowCache != null ? rowCache.getStamp() : 0;
+		startProgress(lastFrame - firstFrame + 1);
+		
+		if(numThreads > 1 && lastFrame > firstFrame) {
+			assembleRowsParallel(firstFrame, lastFrame);
+		}
+		else {
+			assembleRows(firstFrame, lastFrame);
+		}
+		
+		endProgress();
+		
+		return true;
+	}
+	
+	/**
+	 * @return the furthest distance along a ROI to its anchor point of the first track, over every frame, as measured by the last "assemble" or "reassembleRows".
+	 * The anchor point is at this column of the kymograph
+	 */
+	public int getMaxAnchorIndex() {
+		return tracks.get(0).maxAnchorIndex;
+	}
+	
+	/**
+	 * Wraps a kymograph in an image, calibrated from the stack it was made from: x in the spatial unit of the stack, y in its time unit.
+	 * A kymograph with several channels becomes a composite image.
+	 * 
+	 * @param title the title of the image
+	 * @param kymo the kymograph, with one image per channel
+	 * @param calibration the calibration of the stack
+	 * 
+	 * @return the kymograph image
+	 */
+	public static ImagePlus createImage(String title, ImageStack kymo, Calibration calibration) {
+		
+		ImagePlus kymoImage = new ImagePlus(title, kymo);
+		
+		if(kymo.getSize() > 1) {
+			kymoImage.setDimensions(kymo.getSize(), 1, 1);
+			kymoImage = new CompositeImage(kymoImage, CompositeImage.COMPOSITE);
+		}
+		
+		Calibration kymoCal = kymoImage.getCalibration();
+		if(Double.isFinite(calibration.frameInterval)) {
+			kymoCal.pixelHeight = calibration.frameInterval;
+		}
+		kymoCal.setYUnit(calibration.getTimeUnit());
+		kymoCal.pixelWidth = calibration.pixelWidth;
+		kymoCal.setXUnit(calibration.getXUnit());
+		
+		return kymoImage;
+	}
+	
+	/**
+	 * Picks how frames are sampled. A virtual stack opened from an uncompressed TIFF file is sampled straight from the memory-mapped file,
+	 * so only the pixels under the ROI are read. Everything else is sampled from the stack.
+	 * 
+	 * @param imp the image to sample
+	 * 
+	 * @return the sampler for the image
+	 */
+	public static KymographSampler createSampler(ImagePlus imp) {
+		
+		if(imp.getStack().isVirtual()) {
+			try {
+				return MappedTiffSampler.open(imp);
+			} catch (IOException e) {
+				KymographLog.info("Sampling from the stack: %s", e.getMessage());
+			}
+		}
+		
+		return new KymographSampler(imp);
+	}
+	
+	/**
+	 * Helper method for "assembleAll". Geometry pre-pass: measures the interpolated ROI of a track on every frame from its vertices alone, without reading any pixels.
+	 * Interpolated frames can be longer than the key frames around them, so every frame is measured rather than only the key frames.
+	 * Sets the kymograph width (the length of the longest ROI) and the furthest distance along a ROI to its anchor point of the track.
+	 * 
+	 * @param track the track to measure
+	 */
+	private void measureFrames(Track track) {
+		
+		int[] maxima = measureFrames(track, 1, numFrames, null, null);
+		
+		track.kymoLength = maxima[0];
+		track.maxAnchorIndex = maxima[1];
+	}
+	
+	/**
+	 * Measures the interpolated ROI of the first track on frames firstFrame through lastFrame from its vertices alone, without reading any pixels.
+	 * Used by the live preview to tell, from the frames changed by an edit, whether the kymograph keeps its width and anchor alignment (see "reassembleRows").
+	 * 
+	 * @param firstFrame the first frame to measure
+	 * @param lastFrame the last frame to measure
+	 * @param lengths receives the length (in whole pixels, the width of its row) of the ROI on each frame, indexed by frame. 0 for a frame without a ROI
+	 * @param anchorIndices receives the distance along the ROI to its anchor point on each frame, indexed by frame
+	 * 
+	 * @throws IllegalStateException if the assembler does not have exactly one track
+	 */
+	public void measureFrames(int firstFrame, int lastFrame, int[] lengths, int[] anchorIndices) {
+		
+		if(tracks.size() != 1) {
+			throw new IllegalStateException("KymographAssembler error: only the frames of a single track can be measured");
+		}
+		
+		measureFrames(tracks.get(0), Math.max(firstFrame, 1), Math.min(lastFrame, numFrames), lengths, anchorIndices);
+	}
+	
+	/**
+	 * Helper method for "measureFrames". Measures the interpolated ROI of a track on frames firstFrame through lastFrame.
+	 * 
+	 * @param track the track to measure
+	 * @param firstFrame the first frame to measure
+	 * @param lastFrame the last frame to measure
+	 * @param lengths receives the length of the ROI on each frame, indexed by frame (null if not needed)
+	 * @param anchorIndices receives the distance along the ROI to its anchor point on each frame, indexed by frame (null if not needed)
+	 * 
+	 * @return the longest ROI and the furthest distance to the anchor point over the frames
+	 */
+	private int[] measureFrames(Track track, int firstFrame, int lastFrame, int[] lengths, int[] anchorIndices) {
+		
+		int kymoLength = 0;
+		int maxAnchorIndex = 0;
+		int anchorID = track.keyFrames.getAnchorID();
+		
+		InterpolatedFrames lazyFrame = new InterpolatedFrames(1);
+		
+		for(int frame = firstFrame; frame <= lastFrame; frame++) {
+			
+			InterpolatedFrames frames = track.interpolatedFrames;
+			int slot = frame;
+			
+			if(frames == null) {
+				lazyFrame.fill(track.keyFrames, frame, frame, 0);
+				frames = lazyFrame;
+				slot = 0;
+			}
+			
+			boolean hasRoi = frames.getNPoints(slot) > 0;
+			int length = hasRoi ? frames.getLength(slot) : 0;
+			int anchorIndex = hasRoi ? frames.getAnchorIndex(slot, anchorID) : 0;
+			
+			if(lengths != null) {
+				lengths[frame] = length;
+			}
+			if(anchorIndices != null) {
+				anchorIndices[frame] = anchorIndex;
+			}
+			
+			kymoLength = Math.max(kymoLength, length);
+			maxAnchorIndex = Math.max(maxAnchorIndex, anchorIndex);
+		}
+		
+		return new int[] {kymoLength, maxAnchorIndex};
+	}
+	
+	/**
+	 * Helper method for "assembleAll". Checks, from the vertices alone, whether the row cache holds the rows of every frame of every track.
+	 * 
+	 * @return true if no frame has to be sampled
+	 */
+	private boolean allRowsCached() {
+		
+		if(rowCache == null) {
+			return false;
+		}
+		
+		InterpolatedFrames lazyFrame = new InterpolatedFrames(1);
+		
+		for (Track track : tracks) {
+			for(int frame = 1; frame <= numFrames; frame++) {
+				
+				InterpolatedFrames frames = track.interpolatedFrames;
+				int slot = frame;
+				
+				if(frames == null) {
+					lazyFrame.fill(track.keyFrames, frame, frame, 0);
+					frames = lazyFrame;
+					slot = 0;
+				}
+				
+				if(frames.getNPoints(slot) > 0 && rowCache.get(frame, frames, slot, lineWidth) == null) {
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Helper method for "assembleAll" and "reassembleRows". Fills the kymograph rows for frames fromFrame through toFrame (inclusive) using "numThreads" threads.
+	 * Each thread is given a disjoint range of frames to fill.
+	 * The result is identical to filling the rows one frame at a time.
+	 * 
+	 * @param fromFrame the first frame (row) to fill
+	 * @param toFrame the last frame (row) to fill
+	 * 
+	 * @throws RuntimeException if a thread failed or the calling thread was interrupted, so a partly filled kymograph is never returned
+	 */
+	private void assembleRowsParallel(int fromFrame, int toFrame) {
+		
+		int rangeFrames = toFrame - fromFrame + 1;
+		int threads = Math.min(numThreads, rangeFrames);
+		int chunks = Math.min(threads * CHUNKS_PER_THREAD, rangeFrames);
+		int framesPerChunk = (rangeFrames + chunks - 1) / chunks;
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> rowRanges = new ArrayList<Future<?>>();
+		
+		for(int startFrame = fromFrame; startFrame <= toFrame; startFrame += framesPerChunk) {
+			
+			final int firstFrame = startFrame;
+			final int lastFrame = Math.min(startFrame + framesPerChunk - 1, toFrame);
+			
+			rowRanges.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					
+					long startBytes = metrics != null ? KymographMetrics.threadAllocatedBytes() : -1;
+					
+					assembleRows(firstFrame, lastFrame);
+					
+					if(metrics != null) {
+						metrics.addAllocatedBytes(startBytes);
+					}
+				}
+			}));
+		}
+		
+		try {
+			for (Future<?> rowRange : rowRanges) {
+				rowRange.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("assembleRowsParallel error: interrupted", e);
+		} catch (ExecutionException e) {
+			throw workerFailure(e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Helper method for "assembleAll" and "reassembleRows". Fills the kymograph rows for frames firstFrame through lastFrame (inclusive).
+	 * Frames are read straight from the image stack by the sampler, so the displayed slice is never changed.
+	 * 
+	 * @param firstFrame the first frame (row) to fill
+	 * @param lastFrame the last frame (row) to fill
+	 */
+	private void assembleRows(int firstFrame, int lastFrame) {
+		
+		InterpolatedFrames lazyFrame = new InterpolatedFrames(1);	//one reused slot per thread
+		
+		for(int frame = firstFrame; frame <= lastFrame && !cancelled; frame++) {
+			assembleFrame(frame, null, lazyFrame);
+		}
+	}
+	
+	/**
+	 * Helper method for "assembleAll". Streaming mode: fills the kymograph rows from frames read in order by a background thread (see "FramePrefetcher").
+	 * Reading a frame of a virtual stack from disk overlaps with sampling the frames read before it, and only a few frames are held in memory at once.
+	 * The frames are sampled by "numThreads" threads, so the result is identical to filling the rows one frame at a time.
+	 * 
+	 * @throws RuntimeException if a thread failed or the calling thread was interrupted, so a partly filled kymograph is never returned
+	 */
+	private void assembleRowsStreaming() {
+		
+		int threads = Math.max(1, Math.min(numThreads, numFrames));
+		
+		final FramePrefetcher prefetcher = new FramePrefetcher(sampler, 1, numFrames, PREFETCH_FRAMES_PER_THREAD * threads);
+		prefetcher.start();
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> consumers = new ArrayList<Future<?>>();
+		
+		for(int thread = 0; thread < threads; thread++) {
+			
+			consumers.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws InterruptedException {
+					
+					long startBytes = metrics != null ? KymographMetrics.threadAllocatedBytes() : -1;
+					
+					InterpolatedFrames lazyFrame = new InterpolatedFrames(1);
+					FramePrefetcher.PrefetchedFrame next;
+					
+					while(!cancelled && (next = prefetcher.take()) != null) {
+						assembleFrame(next.getFrame(), next.getProcessors(), lazyFrame);
+					}
+					
+					if(metrics != null) {
+						metrics.addAllocatedBytes(startBytes);
+					}
+					return null;
+				}
+			}));
+		}
+		
+		try {
+			for (Future<?> consumer : consumers) {
+				consumer.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("assembleRowsStreaming error: interrupted", e);
+		} catch (ExecutionException e) {
+			throw workerFailure(e);
+		} finally {
+			pool.shutdownNow();
+			prefetcher.stop();
+		}
+	}
+	
+	/**
+	 * Helper method for "assembleRowsParallel" and "assembleRowsStreaming". The failure of a thread, to rethrow on the calling thread.
+	 * 
+	 * @param e the failure, as reported by the thread's Future
+	 * 
+	 * @return the cause of the failure, wrapped in a RuntimeException if it is a checked exception
+	 */
+	private static RuntimeException workerFailure(ExecutionException e) {
+		
+		Throwable cause = e.getCause();
+		
+		if(cause instanceof Error) {
+			throw (Error) cause;
+		}
+		
+		return cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+	}
+	
+	/**
+	 * Helper method for "assembleRows" and "assembleRowsStreaming". Fills the row of a frame in the kymograph of every track.
+	 * Every channel of the frame is read at most once, and only if a track's row is not in the row cache.
+	 * 
+	 * @param frame the frame (row) to fill
+	 * @param ips the processors of the channels of the frame, if they were already read (null to read them when needed)
+	 * @param lazyFrame a one slot buffer owned by the calling thread, used to interpolate tracks that have no interpolated frames
+	 */
+	private void assembleFrame(int frame, ImageProcessor[] ips, InterpolatedFrames lazyFrame) {
+		
+		for (Track track : tracks) {
+			ips = assembleRow(track, frame, ips, lazyFrame);
+		}
+		
+		int done = framesDone.incrementAndGet();
+		
+		if(metrics != null) {
+			metrics.addFrames(1);
+		}
+		
+		if(showProgress && done % progressStep == 0) {
+			IJ.showProgress(done, progressTotal);
+		}
+	}
+	
+	/**
+	 * Helper method for "assembleAll" and "reassembleRows". Starts counting the frames assembled.
+	 * 
+	 * @param total the number of frames to assemble
+	 */
+	private void startProgress(int total) {
+		
+		framesDone.set(0);
+		progressTotal = total;
+		progressStep = Math.max(1, total / 100);	//updates the progress bar about a hundred times
+	}
+	
+	/**
+	 * Helper method for "assembleAll" and "reassembleRows". Clears the progress bar, and stops the assembly if it was cancelled.
+	 * 
+	 * @throws CancellationException if the assembly was cancelled
+	 */
+	private void endProgress() {
+		
+		if(showProgress) {
+			IJ.showProgress(1.0);
+		}
+		if(cancelled) {
+			throw new CancellationException("Kymograph cancelled");
+		}
+	}
+	
+	/**
+	 * Helper method for "assembleFrame". Samples the interpolated ROI of a track on every channel of one frame and writes it, aligned, into its row of the track's kymograph.
+	 * 
+	 * @param track the track
+	 * @param frame the frame (row) to fill
+	 * @param ips the processors of the channels of the frame, if they were already read (null to read them when needed)
+	 * @param lazyFrame a one slot buffer owned by the calling thread, used if the track has no interpolated frames
+	 * 
+	 * @return the processors of the channels of the frame, if they have been read (so the next track does not read them again)
+	 */
+	private ImageProcessor[] assembleRow(Track track, int frame, ImageProcessor[] ips, InterpolatedFrames lazyFrame) {
+		
+		long time = metrics != null ? System.nanoTime() : 0;
+		
+		InterpolatedFrames frames = track.interpolatedFrames;
+		int slot = frame;
+		
+		if(frames == null) {
+			lazyFrame.fill(track.keyFrames, frame, frame, 0);
+			frames = lazyFrame;
+			slot = 0;
+			
+			if(metrics != null) {
+				time = metrics.lap(KymographMetrics.INTERPOLATION, time);
+			}
+		}
+		
+		if(frames.getNPoints(slot) == 0) {
+			return ips;
+		}
+		
+		double[][] pixels = rowCache != null ? rowCache.get(frame, frames, slot, lineWidth) : null;
+		
+		if(pixels == null) {
+			
+			if(ips == null && sampler.readsWholeFrames()) {
+				ips = sampler.getProcessors(frame);	//read once, shared by every track
+			}
+			
+			SamplingPlan plan = frames.getSamplingPlan(slot, lineWidth);	//built once and reused by every line width shift and every channel
+			pixels = new double[numChannels][];
+			
+			for(int channel = 0; channel < numChannels; channel++) {
+				pixels[channel] = ips != null ? sampler.averageWidth(ips[channel], plan) : sampler.averageWidth(frame, channel + 1, plan);
+			}
+			
+			if(rowCache != null) {
+				rowCache.put(frame, frames, slot, lineWidth, rowStamp, pixels);
+			}
+			
+			if(metrics != null) {
+				time = metrics.lap(KymographMetrics.SAMPLING, time);	//includes reading the frame
+				metrics.addSamples((long) numChannels * pixels[0].length * lineWidth);
+			}
+		}
+		
+		int anchorIndex = frames.getAnchorIndex(slot, track.keyFrames.getAnchorID());
+		
+		for(int channel = 0; channel < numChannels; channel++) {
+			
+			double[] alignedPixels = alignPixels(pixels[channel], track.kymoLength, track.maxAnchorIndex, anchorIndex);
+			
+			if(metrics != null) {
+				time = metrics.lap(KymographMetrics.ALIGNMENT, time);
+			}
+			
+			sampler.putRow(track.kymos[channel], frame - 1, alignedPixels);	//frames are numbered from 1, rows from 0
+			
+			if(metrics != null) {
+				time = metrics.lap(KymographMetrics.WRITE, time);
+			}
+		}
+		
+		return ips;
+	}
+	
+	/**
+	 * Helper method for "assembleRow". Aligns a slice of the kymograph based on the position of the anchor point.
+	 * 
+	 * @param pixels the kymograph slice (pixels along a ROI after averaging for line width) to align
+	 * @param kymoWidth the length of the longest slice (the longest ROI) in the entire kymograph
+	 * @param the index of the anchor point in the pixel array of the longest kympgraph slice
+	 * @param anchorIndex the index of the anchor point in this kymograph slice (distance along the ROI to the anchor point)
+	 * 
+	 * @return a pixel array of size kymoWidth such that the anchor point of the input pixel array is aligned with indexToMatch
+	 */
+	private double[] alignPixels(double[] pixels, int kymoWidth, int indexToMatch, int anchorIndex) {
+		
+		double[] alignedPixels = new double[kymoWidth];
+		
+		int startIndex = 0;	//defined such that startIndex + lengthBeforeAnchor = indexToMatch so that the anchor point is aligned with the indexToMatch
+		if (indexToMatch - anchorIndex > 1) {
+			startIndex = indexToMatch - anchorIndex;
+		}
+		
+		for(int i = 0; i < pixels.length && startIndex + i < alignedPixels.length; i++) {
+			alignedPixels[startIndex + i] = pixels[i];
+		}
+		
+		return alignedPixels;
+	}
+	
+	/**
+	 * The key frames of one traced filament, and its kymograph while it is assembled.
+	 */
+	private static class Track {
+		
+		private KeyFrames keyFrames;
+		private InterpolatedFrames interpolatedFrames;
+		
+		private int kymoLength;
+		private int maxAnchorIndex;
+		private ImageProcessor[] kymos;	//one per channel
+		
+		Track(KeyFrames keyFrames, InterpolatedFrames interpolatedFrames) {
+			this.keyFrames = keyFrames;
+			this.interpolatedFrames = interpolatedFrames;
+		}
+	}
+}
@@ -0,0 +1,420 @@
+package sc.fiji;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.gui.Roi;
+
+import ij.io.FileSaver;
+import ij.io.RoiDecoder;
+
+/**
+ * KymographBatch.java
+ * Purpose: headless entry point. Makes kymographs for many stacks at once, without the plugin window.
+ * Each stack is given with its key frames: a ROI set (.zip, as saved by the ROI Manager) or a single .roi file of polyline ROIs,
+ * where the position of each ROI is the frame it is the key frame of (the time point, on a hyperstack). The kymographs are saved as TIFF files,
+ * with one channel per channel of the stack. The z-slices of a hyperstack are max projected, unless a z-slice is given with -z.
+ * The stacks are processed concurrently on a pool of worker threads, using the same interpolation and assembly code as the plugin.
+ * The ROIs between key frames are interpolated linearly, or along monotone cubics with -interpolation cubic (see "KeyFrames.setInterpolation").
+ * With -metrics, each stack is timed stage by stage (see "KymographMetrics"), appended to a CSV file and emitted to Java Flight Recorder.
+ *
+ * Usage: KymographBatch [-lineWidth n] [-anchor n] [-interpolation linear|cubic] [-z n] [-jobs n] [-virtual] [-log off|info|debug] [-metrics file.csv] [-out directory] stack rois [stack rois ...]
+ *
+ * @version v1.6
+ */
+public class KymographBatch {
+	
+	static final String USAGE = "Usage: KymographBatch [-lineWidth n] [-anchor n] [-interpolation linear|cubic] [-z n] [-jobs n] [-virtual] [-log off|info|debug] [-metrics file.csv] [-out directory] stack rois [stack rois ...]";
+	
+	private int lineWidth = 1;
+	private int anchorID = -1;	//-1: no anchor point
+	private int interpolation = KeyFrames.LINEAR;
+	private int zSlice = 0;	//0: max projection over z
+	private int jobs = Runtime.getRuntime().availableProcessors();
+	private boolean virtual = false;
+	private File outputDirectory = null;	//null: next to each stack
+	private File metricsFile = null;	//null: not timed
+	
+	private List<File> stacks = new ArrayList<File>();
+	private List<File> roiFiles = new ArrayList<File>();
+	
+	/**
+	 * Runs the batch from the command line. Exits with status 1 if any stack failed.
+	 *
+	 * @param args the options, followed by pairs of stack and ROI files
+	 */
+	public static void main(String[] args) {
+		
+		KymographBatch batch = new KymographBatch();
+		
+		try {
+			batch.parseArguments(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		
+		int failures = batch.run();
+		System.exit(failures == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * Reads the options and the stack and ROI file pairs.
+	 *
+	 * @param args the command line arguments
+	 *
+	 * @throws IllegalArgumentException if the arguments are not valid
+	 */
+	public void parseArguments(String[] args) {
+		
+		List<String> files = new ArrayList<String>();
+		
+		for(int i = 0; i < args.length; i++) {
+			
+			String arg = args[i];
+			
+			if(arg.equals("-lineWidth")) {
+				lineWidth = parseInt(args, ++i);
+				
+				if(lineWidth % 2 == 0) {
+					throw new IllegalArgumentException("Please enter odd line width");
+				}
+			}
+			else if(arg.equals("-anchor")) {
+				anchorID = parseInt(args, ++i) - 1;	//numbered from 1, like the anchor label of the plugin
+			}
+			else if(arg.equals("-interpolation")) {
+				if(++i >= args.length) {
+					throw new IllegalArgumentException("Missing interpolation after -interpolation");
+				}
+				
+				interpolation = KeyFrames.parseInterpolation(args[i], -1);
+				
+				if(interpolation < 0) {
+					throw new IllegalArgumentException("Unknown interpolation: " + args[i]);
+				}
+			}
+			else if(arg.equals("-z")) {
+				zSlice = parseInt(args, ++i);
+				
+				if(zSlice < 0) {
+					throw new IllegalArgumentException("Please enter a z-slice from 1, or 0 for the max projection");
+				}
+			}
+			else if(arg.equals("-jobs")) {
+				jobs = Math.max(1, parseInt(args, ++i));
+			}
+			else if(arg.equals("-virtual")) {
+				virtual = true;
+			}
+			else if(arg.equals("-log")) {
+				if(++i >= args.length) {
+					throw new IllegalArgumentException("Missing level after -log");
+				}
+				
+				int level = KymographLog.parseLevel(args[i], -1);
+				
+				if(level < 0) {
+					throw new IllegalArgumentException("Unknown log level: " + args[i]);
+				}
+				KymographLog.setLevel(level);
+			}
+			else if(arg.equals("-out")) {
+				if(++i >= args.length) {
+					throw new IllegalArgumentException("Missing directory after -out");
+				}
+				outputDirectory = new File(args[i]);
+			}
+			else if(arg.equals("-metrics")) {
+				if(++i >= args.length) {
+					throw new IllegalArgumentException("Missing file after -metrics");
+				}
+				metricsFile = new File(args[i]);
+			}
+			else if(arg.startsWith("-")) {
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+			else {
+				files.add(arg);
+			}
+		}
+		
+		if(files.isEmpty() || files.size() % 2 != 0) {
+			throw new IllegalArgumentException("Expected pairs of stack and ROI files");
+		}
+		
+		for(int i = 0; i < files.size(); i += 2) {
+			stacks.add(new File(files.get(i)));
+			roiFiles.add(new File(files.get(i + 1)));
+		}
+	}
+	
+	/**
+	 * Makes the kymograph of every stack, "jobs" stacks at a time.
+	 * A stack whose kymograph would be saved to the same file as the kymograph of an earlier stack (two stacks with the same name, with -out) fails,
+	 * rather than overwriting it.
+	 *
+	 * @return the number of stacks that failed
+	 */
+	public int run() {
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, stacks.size()));
+		List<Future<File>> results = new ArrayList<Future<File>>();
+		Map<File, File> outputs = new HashMap<File, File>();	//kymograph file -> the stack it is the kymograph of
+		String[] collisions = new String[stacks.size()];
+		
+		for(int i = 0; i < stacks.size(); i++) {
+			
+			final File stack = stacks.get(i);
+			final File rois = roiFiles.get(i);
+			
+			File output = outputFile(stack).getAbsoluteFile();
+			File other = outputs.get(output);
+			
+			if(other != null) {
+				collisions[i] = output + " is already the kymograph of " + other;
+				results.add(null);
+				continue;
+			}
+			outputs.put(output, stack);
+			
+			results.add(pool.submit(new Callable<File>() {
+				@Override
+				public File call() throws IOException {
+					return process(stack, rois);
+				}
+			}));
+		}
+		
+		int failures = 0;
+		
+		try {
+			for(int i = 0; i < results.size(); i++) {
+				
+				if(collisions[i] != null) {
+					failures++;
+					System.err.println("KymographBatch error: " + stacks.get(i) + ": " + collisions[i]);
+					continue;
+				}
+				
+				try {
+					KymographLog.info("Saved kymograph: %s", results.get(i).get());
+				} catch (ExecutionException e) {
+					failures++;
+					System.err.println("KymographBatch error: " + stacks.get(i) + ": " + e.getCause());	//whatever the log level
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failures = stacks.size();
+		} finally {
+			pool.shutdownNow();
+		}
+		
+		return failures;
+	}
+	
+	/**
+	 * Makes and saves the kymograph of one stack.
+	 *
+	 * @param stack the stack file
+	 * @param rois the ROI set (.zip) or .roi file with the key frames of the stack
+	 *
+	 * @return the kymograph file
+	 *
+	 * @throws IOException if the stack or ROIs cannot be read, or the kymograph cannot be saved
+	 */
+	public File process(File stack, File rois) throws IOException {
+		
+		ImagePlus image = virtual ? IJ.openVirtual(stack.getPath()) : IJ.openImage(stack.getPath());
+		
+		if(image == null) {
+			throw new IOException("could not open " + stack);
+		}
+		
+		try {
+			String name = stack.getName().replaceFirst("\\.[^.]*$", "");
+			
+			KymographMetrics metrics = metricsFile != null ? new KymographMetrics(name) : null;
+			
+			if(metrics != null) {
+				metrics.start();
+			}
+			
+			KymographSampler sampler = KymographAssembler.createSampler(image);
+			sampler.setZSlice(zSlice);
+			
+			int numFrames = sampler.getNumFrames();
+			KeyFrames keyFrames = readKeyFrames(rois, numFrames);
+			
+			if(keyFrames.isEmpty()) {
+				throw new IOException("no polyline key frames in " + rois);
+			}
+			if(anchorID >= 0) {
+				keyFrames.updateAnchor(anchorID);
+			}
+			keyFrames.setInterpolation(interpolation);
+			
+			InterpolatedFrames interpolatedFrames = null;	//lazy for very long stacks, like the plugin
+			
+			if(numFrames <= Dynamic_Kymograph.LAZY_INTERPOLATION_FRAMES) {
+				long time = System.nanoTime();
+				
+				interpolatedFrames = new InterpolatedFrames(numFrames + 1);
+				interpolatedFrames.fill(keyFrames, 1, numFrames, 1);
+				
+				if(metrics != null) {
+					metrics.lap(KymographMetrics.INTERPOLATION, time);
+				}
+			}
+			
+			KymographAssembler assembler = new KymographAssembler(sampler, keyFrames, interpolatedFrames);
+			assembler.setLineWidth(lineWidth);
+			assembler.setStreaming(image.getStack().isVirtual() && sampler.readsWholeFrames());	//the stacks themselves run in parallel, so each is assembled on one thread
+			assembler.setMetrics(metrics);
+			
+			ImageStack kymo = assembler.assemble();
+			
+			if(metrics != null) {
+				metrics.stop();
+				metrics.emitJfrEvent();
+				metrics.appendCsv(metricsFile);
+			}
+			
+			File output = outputFile(stack);
+			
+			ImagePlus kymoImage = KymographAssembler.createImage(name + " kymograph", kymo, image.getCalibration());
+			
+			if(!new FileSaver(kymoImage).saveAsTiff(output.getPath())) {
+				throw new IOException("could not save " + output);
+			}
+			
+			return output;
+		} finally {
+			image.close();	//also when the stack failed, so a long batch does not keep failed stacks in memory
+		}
+	}
+	
+	/**
+	 * @param stack the stack file
+	 *
+	 * @return the file the kymograph of the stack is saved to: "(stack name)_kymograph.tif", in the output directory or next to the stack
+	 */
+	File outputFile(File stack) {
+		
+		String name = stack.getName().replaceFirst("\\.[^.]*$", "");
+		File directory = outputDirectory != null ? outputDirectory : stack.getAbsoluteFile().getParentFile();
+		
+		return new File(directory, name + "_kymograph.tif");
+	}
+	
+	/**
+	 * Reads key frames from a ROI set (.zip) or a single .roi file. The position of each polyline ROI is its frame
+	 * (its time point, for a ROI with a hyperstack position). Other ROIs are skipped.
+	 *
+	 * @param file the ROI file
+	 * @param numFrames the number of frames (time points) in the stack
+	 *
+	 * @return the key frames
+	 *
+	 * @throws IOException if the file cannot be read
+	 */
+	public static KeyFrames readKeyFrames(File file, int numFrames) throws IOException {
+		
+		List<Roi> rois = new ArrayList<Roi>();
+		
+		if(file.getName().toLowerCase().endsWith(".zip")) {
+			
+			ZipInputStream zip = new ZipInputStream(new FileInputStream(file));
+			
+			try {
+				ZipEntry entry;
+				
+				while((entry = zip.getNextEntry()) != null) {
+					if(entry.getName().endsWith(".roi")) {
+						rois.add(new RoiDecoder(readAll(zip), entry.getName()).getRoi());
+					}
+				}
+			} finally {
+				zip.close();
+			}
+		}
+		else {
+			rois.add(new RoiDecoder(Files.readAllBytes(file.toPath()), file.getName()).getRoi());
+		}
+		
+		KeyFrames keyFrames = new KeyFrames();
+		
+		for(Roi roi : rois) {
+			
+			if(roi == null || roi.getType() != Roi.POLYLINE) {
+				continue;
+			}
+			
+			int frame = roi.getTPosition() > 0 ? roi.getTPosition() : roi.getPosition();
+			
+			if(frame == 0 && rois.size() == 1) {
+				frame = 1;	//a single ROI without a position is the key frame of the whole stack
+			}
+			
+			if(frame < 1 || frame > numFrames) {
+				KymographLog.info("KymographBatch: skipped ROI %s in %s, no frame position", roi.getName(), file);
+				continue;
+			}
+			
+			keyFrames.addKeyFrame(new KeyFrame(frame, roi));
+		}
+		
+		return keyFrames;
+	}
+	
+	private static byte[] readAll(InputStream in) throws IOException {
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		
+		while((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		
+		return out.toByteArray();
+	}
+	
+	private static int parseInt(String[] args, int i) {
+		
+		if(i >= args.length) {
+			throw new IllegalArgumentException("Missing number after " + args[i - 1]);
+		}
+		
+		try {
+			return Integer.parseInt(args[i]);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a number: " + args[i]);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package sc.fiji;
+
+import java.lang.annotation.Annotation;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * KymographJfr.java
+ * Purpose: emits the metrics of kymograph runs as "sc.fiji.KymographRun" events to Java Flight Recorder, so they line up with the JVM's own events
+ * (garbage collection, allocation, threads) in a recording. The plugin is built for Java 8, which has no JFR event API,
+ * so the event type is made at run time with jdk.jfr.EventFactory, through reflection. On a JVM without it, nothing is emitted.
+ *
+ * @version v1.6
+ */
+class KymographJfr {
+	
+	static final String EVENT_NAME = "sc.fiji.KymographRun";
+	
+	private static final String[] FIELD_NAMES = {"label", "frames", "wallMillis", "framesPerSecond", "samples", "samplesPerSecond", "bytesAllocated",
+			"interpolationMillis", "samplingMillis", "alignmentMillis", "writeMillis"};
+	private static final Class<?>[] FIELD_TYPES = {String.class, long.class, double.class, double.class, long.class, double.class, long.class,
+			double.class, double.class, double.class, double.class};
+	
+	//the event factory and the methods of its events. null if the JVM has no JFR event API
+	private static Object factory;
+	private static Method newEvent;
+	private static Method set;
+	private static Method commit;
+	
+	static {
+		try {
+			Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+			Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			
+			Constructor<?> newAnnotation = annotationElementClass.getConstructor(Class.class, Object.class);
+			Constructor<?> newField = valueDescriptorClass.getConstructor(Class.class, String.class);
+			
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(newAnnotation.newInstance(annotation("jdk.jfr.Name"), EVENT_NAME));
+			annotations.add(newAnnotation.newInstance(annotation("jdk.jfr.Label"), "Kymograph run"));
+			annotations.add(newAnnotation.newInstance(annotation("jdk.jfr.Category"), new String[] {"Dynamic Kymograph"}));
+			
+			List<Object> fields = new ArrayList<Object>();
+			
+			for(int f = 0; f < FIELD_NAMES.length; f++) {
+				fields.add(newField.newInstance(FIELD_TYPES[f], FIELD_NAMES[f]));
+			}
+			
+			factory = eventFactoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+			newEvent = eventFactoryClass.getMethod("newEvent");
+			set = eventClass.getMethod("set", int.class, Object.class);
+			commit = eventClass.getMethod("commit");
+		} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+			factory = null;	//no JFR event API: runs are not emitted
+		}
+	}
+	
+	private KymographJfr() {}
+	
+	/**
+	 * @return true if runs are emitted to Java Flight Recorder
+	 */
+	static boolean isAvailable() {
+		return factory != null;
+	}
+	
+	/**
+	 * Emits one run. The event is only recorded if a recording with it enabled is running.
+	 *
+	 * @param metrics the metrics of the run
+	 */
+	static void commit(KymographMetrics metrics) {
+		
+		if(factory == null) {
+			return;
+		}
+		
+		Object[] values = {metrics.getLabel(), metrics.getFrames(), metrics.getWallMillis(), metrics.getFramesPerSecond(), metrics.getSamples(),
+				metrics.getSamplesPerSecond(), metrics.getBytesAllocated(), metrics.getStageMillis(KymographMetrics.INTERPOLATION),
+				metrics.getStageMillis(KymographMetrics.SAMPLING), metrics.getStageMillis(KymographMetrics.ALIGNMENT), metrics.getStageMillis(KymographMetrics.WRITE)};
+		
+		try {
+			Object event = newEvent.invoke(factory);
+			
+			for(int f = 0; f < values.length; f++) {
+				set.invoke(event, f, values[f]);
+			}
+			
+			commit.invoke(event);
+		} catch (ReflectiveOperationException e) {
+			KymographLog.info("KymographJfr error: %s", e);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Class<? extends Annotation> annotation(String name) throws ClassNotFoundException {
+		return (Class<? extends Annotation>) Class.forName(name);
+	}
+}
@@ -0,0 +1,99 @@
+package sc.fiji;
+
+import ij.IJ;
+import ij.Prefs;
+
+/**
+ * KymographLog.java
+ * Purpose: levelled logging to the ImageJ Log window, for the plugin, the assembler and the batch runner.
+ * Messages are given as a format string and its arguments, and are only formatted (and their arguments only converted to strings) if their level is enabled.
+ * The arguments are still boxed into an array on every call, so debug messages on hot paths (frame changes, ROI events, interpolation) are guarded with "isDebug".
+ * The level is read from the ImageJ preference "dynamic_kymograph.log" ("off", "info" or "debug"), and is "info" by default.
+ *
+ * @version v1.6
+ */
+public class KymographLog {
+	
+	public static final int OFF = 0;	//nothing is logged
+	public static final int INFO = 1;	//what the user did, and problems
+	public static final int DEBUG = 2;	//every event, for debugging
+	
+	static final String PREF_KEY = "dynamic_kymograph.log";
+	static final String[] LEVEL_NAMES = {"off", "info", "debug"};
+	
+	private static volatile int level = parseLevel(Prefs.get(PREF_KEY, "info"), INFO);
+	
+	private KymographLog() {}
+	
+	/**
+	 * @param newLevel OFF, INFO or DEBUG
+	 */
+	public static void setLevel(int newLevel) {
+		
+		if(newLevel < OFF || newLevel > DEBUG) {
+			throw new IllegalArgumentException("KymographLog error: unknown level " + newLevel);
+		}
+		
+		level = newLevel;
+	}
+	
+	public static int getLevel() {
+		return level;
+	}
+	
+	/**
+	 * @return true if debug messages are logged. Used to skip building (and boxing) the arguments of a debug message on hot paths
+	 */
+	public static boolean isDebug() {
+		return level >= DEBUG;
+	}
+	
+	/**
+	 * Logs a message at info level.
+	 *
+	 * @param format the message, or a format string (see "String.format") if there are arguments
+	 * @param args the arguments of the format string
+	 */
+	public static void info(String format, Object... args) {
+		
+		if(level >= INFO) {
+			log(format, args);
+		}
+	}
+	
+	/**
+	 * Logs a message at debug level.
+	 *
+	 * @param format the message, or a format string (see "String.format") if there are arguments
+	 * @param args the arguments of the format string
+	 */
+	public static void debug(String format, Object... args) {
+		
+		if(level >= DEBUG) {
+			log(format, args);
+		}
+	}
+	
+	/**
+	 * Reads a level name.
+	 *
+	 * @param name "off", "info" or "debug" (in any case)
+	 * @param defaultLevel the level returned if the name is not a level
+	 *
+	 * @return the level
+	 */
+	public static int parseLevel(String name, int defaultLevel) {
+		
+		for(int l = OFF; l <= DEBUG; l++) {
+			if(LEVEL_NAMES[l].equalsIgnoreCase(name)) {
+				return l;
+			}
+		}
+		
+		return defaultLevel;
+	}
+	
+	private static void log(String format, Object[] args) {
+		IJ.log(args.length == 0 ? format : String.format(format, args));
+	}
+}
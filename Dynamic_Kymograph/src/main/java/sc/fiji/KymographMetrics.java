@@ -0,0 +1,279 @@
+package sc.fiji;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.text.SimpleDateFormat;
+
+import java.util.Date;
+import java.util.Locale;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ij.measure.ResultsTable;
+
+/**
+ * KymographMetrics.java
+ * Purpose: times one kymograph run, stage by stage, to see where the time goes and whether an optimization helps.
+ * The stages are the interpolation of the ROI on each frame, the sampling (reading the frame and averaging over the line width), the alignment to the anchor point,
+ * and the writing of the rows. Stage times are summed over every thread, so with several threads they add up to more than the wall time.
+ * Also counts the frames, the pixels sampled and the bytes allocated by the threads of the run (when the JVM can measure it).
+ * A run's results can be added to the "Kymograph metrics" table, appended to a CSV file, and emitted as a Java Flight Recorder event (see "KymographJfr").
+ * The plugin times its runs when the ImageJ preference "dynamic_kymograph.metrics" is true, and appends them to the CSV file named by "dynamic_kymograph.metrics.csv" (if any).
+ *
+ * @version v1.6
+ */
+public class KymographMetrics {
+	
+	public static final int INTERPOLATION = 0;
+	public static final int SAMPLING = 1;
+	public static final int ALIGNMENT = 2;
+	public static final int WRITE = 3;
+	static final String[] STAGE_NAMES = {"interpolation", "sampling", "alignment", "write"};
+	
+	static final String PREF_KEY = "dynamic_kymograph.metrics";
+	static final String FILE_PREF_KEY = "dynamic_kymograph.metrics.csv";
+	
+	static final String TABLE_TITLE = "Kymograph metrics";
+	static final String CSV_HEADER = "date,label,frames,wall_ms,frames_per_s,samples,samples_per_s,bytes_allocated,interpolation_ms,sampling_ms,alignment_ms,write_ms";
+	
+	private static ResultsTable table;	//the summary table, shared by every run
+	
+	private String label;
+	
+	private AtomicLongArray stageNanos;
+	private AtomicLong frames;
+	private AtomicLong samples;
+	private AtomicLong bytesAllocated;	//-1 if the JVM cannot measure it
+	
+	private long startNanos;
+	private long startBytes;
+	private long wallNanos;
+	private Date date;
+	
+	/**
+	 * @param label names the run in the table and the CSV file (for example the title of the stack)
+	 */
+	public KymographMetrics(String label) {
+		
+		this.label = label;
+		
+		stageNanos = new AtomicLongArray(STAGE_NAMES.length);
+		frames = new AtomicLong();
+		samples = new AtomicLong();
+		bytesAllocated = new AtomicLong(threadAllocatedBytes() < 0 ? -1 : 0);
+	}
+	
+	/**
+	 * Starts the wall clock, and starts counting the bytes allocated by the calling thread.
+	 */
+	public void start() {
+		
+		date = new Date();
+		startBytes = threadAllocatedBytes();
+		startNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Stops the wall clock. Must be called on the thread that called "start".
+	 */
+	public void stop() {
+		
+		wallNanos = System.nanoTime() - startNanos;
+		addAllocatedBytes(startBytes);
+	}
+	
+	/**
+	 * Adds the time since an earlier lap to a stage. Thread-safe.
+	 *
+	 * @param stage INTERPOLATION, SAMPLING, ALIGNMENT or WRITE
+	 * @param since the System.nanoTime() the stage started at
+	 *
+	 * @return the current System.nanoTime(), the start of the next stage
+	 */
+	public long lap(int stage, long since) {
+		
+		long now = System.nanoTime();
+		stageNanos.addAndGet(stage, now - since);
+		
+		return now;
+	}
+	
+	/**
+	 * @param count the number of frames (rows) assembled
+	 */
+	public void addFrames(long count) {
+		frames.addAndGet(count);
+	}
+	
+	/**
+	 * @param count the number of pixels sampled
+	 */
+	public void addSamples(long count) {
+		samples.addAndGet(count);
+	}
+	
+	/**
+	 * Adds the bytes allocated by the calling thread since an earlier count. Thread-safe.
+	 *
+	 * @param since the "threadAllocatedBytes" of the calling thread at the start
+	 */
+	public void addAllocatedBytes(long since) {
+		
+		if(since >= 0 && bytesAllocated.get() >= 0) {
+			bytesAllocated.addAndGet(threadAllocatedBytes() - since);
+		}
+	}
+	
+	/**
+	 * @return the bytes allocated so far by the calling thread, or -1 if the JVM cannot measure it
+	 */
+	public static long threadAllocatedBytes() {
+		
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			
+			com.sun.management.ThreadMXBean hotspotThreads = (com.sun.management.ThreadMXBean) threads;
+			
+			if(hotspotThreads.isThreadAllocatedMemorySupported() && hotspotThreads.isThreadAllocatedMemoryEnabled()) {
+				return hotspotThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		
+		return -1;
+	}
+	
+	public String getLabel() {
+		return label;
+	}
+	
+	public long getFrames() {
+		return frames.get();
+	}
+	
+	public long getSamples() {
+		return samples.get();
+	}
+	
+	/**
+	 * @return the bytes allocated by the run, or -1 if the JVM cannot measure it
+	 */
+	public long getBytesAllocated() {
+		return bytesAllocated.get();
+	}
+	
+	public double getWallMillis() {
+		return wallNanos / 1e6;
+	}
+	
+	/**
+	 * @param stage INTERPOLATION, SAMPLING, ALIGNMENT or WRITE
+	 *
+	 * @return the time spent in the stage, summed over every thread
+	 */
+	public double getStageMillis(int stage) {
+		return stageNanos.get(stage) / 1e6;
+	}
+	
+	public double getFramesPerSecond() {
+		return wallNanos > 0 ? frames.get() * 1e9 / wallNanos : 0;
+	}
+	
+	public double getSamplesPerSecond() {
+		return wallNanos > 0 ? samples.get() * 1e9 / wallNanos : 0;
+	}
+	
+	/**
+	 * Adds the run to the "Kymograph metrics" table, and shows the table.
+	 */
+	public void showSummary() {
+		
+		synchronized(KymographMetrics.class) {
+			
+			if(table == null) {
+				table = new ResultsTable();
+			}
+			
+			table.incrementCounter();
+			table.addLabel(label);
+			table.addValue("frames", getFrames());
+			table.addValue("wall (ms)", getWallMillis());
+			table.addValue("frames/s", getFramesPerSecond());
+			table.addValue("samples", getSamples());
+			table.addValue("samples/s", getSamplesPerSecond());
+			table.addValue("bytes allocated", getBytesAllocated());
+			
+			for(int stage = 0; stage < STAGE_NAMES.length; stage++) {
+				table.addValue(STAGE_NAMES[stage] + " (ms)", getStageMillis(stage));
+			}
+			
+			table.show(TABLE_TITLE);
+		}
+	}
+	
+	/**
+	 * Appends the run to a CSV file, writing the header first if the file is new.
+	 *
+	 * @param file the CSV file
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	public void appendCsv(File file) throws IOException {
+		
+		synchronized(KymographMetrics.class) {	//batch runs finish concurrently
+			
+			boolean newFile = !file.exists() || file.length() == 0;
+			PrintWriter out = new PrintWriter(new FileWriter(file, true));
+			
+			try {
+				if(newFile) {
+					out.println(CSV_HEADER);
+				}
+				
+				StringBuilder row = new StringBuilder();
+				row.append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.ROOT).format(date != null ? date : new Date()));
+				row.append(',').append(csvQuote(label));
+				row.append(',').append(getFrames());
+				row.append(',').append(format(getWallMillis()));
+				row.append(',').append(format(getFramesPerSecond()));
+				row.append(',').append(getSamples());
+				row.append(',').append(format(getSamplesPerSecond()));
+				row.append(',').append(getBytesAllocated());
+				
+				for(int stage = 0; stage < STAGE_NAMES.length; stage++) {
+					row.append(',').append(format(getStageMillis(stage)));
+				}
+				
+				out.println(row);
+			} finally {
+				out.close();
+			}
+			
+			if(out.checkError()) {
+				throw new IOException("could not write " + file);
+			}
+		}
+	}
+	
+	/**
+	 * Emits the run as a "sc.fiji.KymographRun" Java Flight Recorder event. Does nothing if the JVM has no JFR event API.
+	 */
+	public void emitJfrEvent() {
+		KymographJfr.commit(this);
+	}
+	
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+	
+	private static String csvQuote(String value) {
+		return "\"" + (value == null ? "" : value.replace("\"", "\"\"")) + "\"";
+	}
+}
@@ -0,0 +1,288 @@
+package sc.fiji;
+
+import java.awt.EventQueue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.measure.Calibration;
+
+/**
+ * KymographPreview.java
+ * Purpose: a live kymograph window that follows the key frames while they are being edited.
+ * After an edit, only the frames whose interpolated ROI changed are measured and re-sampled (on a background thread), and the window is redrawn on the event dispatch thread.
+ * The whole kymograph is only assembled again when its width or anchor alignment changes.
+ * Edits made while an update is running are merged into a single update, made from the latest key frames.
+ *
+ * @version v1.6
+ */
+public class KymographPreview implements Runnable {
+	
+	static final String TITLE = "Kymograph preview";
+	
+	private KymographSampler sampler;
+	private Calibration calibration;
+	private int lineWidth;
+	private int numThreads;
+	
+	private ExecutorService updater;
+	
+	//the latest key frames and the frames that may have changed since the last update. Guarded by "this"
+	private KeyFrames pendingKeyFrames;
+	private int pendingFirstFrame;
+	private int pendingLastFrame;
+	private boolean updateScheduled;
+	
+	//the kymograph shown, and the key frames it was made from. Only used by the updater thread
+	private KeyFrames shownKeyFrames;
+	private ImageStack kymo;
+	private int maxAnchorIndex;
+	private int[] frameLengths;
+	private int[] frameAnchorIndices;
+	private volatile ImagePlus image;
+	private volatile boolean closed;
+	
+	/**
+	 * @param sampler samples the frames of the stack
+	 * @param calibration the calibration of the stack
+	 * @param lineWidth the line width to average over
+	 * @param numThreads the number of threads used to assemble the kymograph
+	 */
+	public KymographPreview(KymographSampler sampler, Calibration calibration, int lineWidth, int numThreads) {
+		
+		this.sampler = sampler;
+		this.calibration = calibration;
+		this.lineWidth = lineWidth;
+		this.numThreads = numThreads;
+		
+		pendingFirstFrame = Integer.MAX_VALUE;
+		pendingLastFrame = 0;
+		updateScheduled = false;
+		closed = false;
+		
+		updater = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Kymograph preview");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Schedules an update after the key frames changed. Returns straight away: the key frames are copied, so they can keep being edited.
+	 *
+	 * @param keyFrames the key frames, as they are now
+	 * @param firstFrame the first frame whose interpolated ROI may have changed
+	 * @param lastFrame the last frame whose interpolated ROI may have changed
+	 */
+	public synchronized void update(KeyFrames keyFrames, int firstFrame, int lastFrame) {
+		
+		if(closed) {
+			return;
+		}
+		
+		pendingKeyFrames = keyFrames.copy();
+		pendingFirstFrame = Math.min(pendingFirstFrame, firstFrame);
+		pendingLastFrame = Math.max(pendingLastFrame, lastFrame);
+		
+		if(!updateScheduled) {
+			updateScheduled = true;
+			updater.execute(this);
+		}
+	}
+	
+	/**
+	 * @return false once the preview was closed, or its window was closed by the user
+	 */
+	public boolean isOpen() {
+		
+		ImagePlus shown = image;
+		
+		return !closed && (shown == null || shown.getWindow() != null);
+	}
+	
+	/**
+	 * Stops updating the preview and closes its window.
+	 */
+	public void close() {
+		
+		synchronized(this) {
+			closed = true;
+		}
+		updater.shutdownNow();
+		
+		if(image != null) {
+			image.close();
+		}
+	}
+	
+	/**
+	 * Makes the pending update, on the updater thread.
+	 */
+	@Override
+	public void run() {
+		
+		KeyFrames keyFrames;
+		int firstFrame;
+		int lastFrame;
+		
+		synchronized(this) {
+			
+			keyFrames = pendingKeyFrames;
+			firstFrame = Math.max(pendingFirstFrame, 1);
+			lastFrame = Math.min(pendingLastFrame, sampler.getNumFrames());
+			
+			pendingKeyFrames = null;
+			pendingFirstFrame = Integer.MAX_VALUE;
+			pendingLastFrame = 0;
+			updateScheduled = false;
+		}
+		
+		if(closed || keyFrames == null) {
+			return;
+		}
+		if(keyFrames.isEmpty()) {
+			kymo = null;	//the key frames were reset, so the next key frames are drawn from scratch
+			return;
+		}
+		
+		try {
+			KymographAssembler assembler = new KymographAssembler(sampler, keyFrames, null);
+			assembler.setLineWidth(lineWidth);
+			assembler.setNumThreads(numThreads);
+			
+			if(kymo != null && sameAnchor(shownKeyFrames, keyFrames)) {
+				
+				int[] changed = changedFrames(shownKeyFrames, keyFrames, firstFrame, lastFrame);
+				
+				if(changed == null) {
+					shownKeyFrames = keyFrames;	//nothing to redraw
+					return;
+				}
+				
+				assembler.measureFrames(changed[0], changed[1], frameLengths, frameAnchorIndices);
+				
+				if(max(frameLengths) == kymo.getWidth() && max(frameAnchorIndices) == maxAnchorIndex
+						&& assembler.reassembleRows(kymo, maxAnchorIndex, changed[0], changed[1])) {
+					shownKeyFrames = keyFrames;
+					redraw();
+					return;
+				}
+			}
+			
+			kymo = assembler.assemble();
+			maxAnchorIndex = assembler.getMaxAnchorIndex();
+			shownKeyFrames = keyFrames;
+			
+			int numFrames = sampler.getNumFrames();
+			frameLengths = new int[numFrames + 1];
+			frameAnchorIndices = new int[numFrames + 1];
+			assembler.measureFrames(1, numFrames, frameLengths, frameAnchorIndices);
+			
+			show();
+		} catch (RuntimeException e) {
+			IJ.handleException(e);
+		}
+	}
+	
+	/**
+	 * Helper method for "run". Redraws the preview window after its rows were re-assembled, on the event dispatch thread.
+	 */
+	private void redraw() {
+		
+		EventQueue.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				
+				ImagePlus shown = image;
+				
+				if(shown != null && !closed) {
+					shown.updateAndDraw();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Helper method for "run". Shows the kymograph in a new preview window, or in the preview window already shown (unless the user closed it),
+	 * on the event dispatch thread.
+	 */
+	private void show() {
+		
+		final ImageStack shownKymo = kymo;
+		
+		EventQueue.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				
+				if(closed) {
+					return;
+				}
+				
+				if(image == null) {
+					ImagePlus shown = KymographAssembler.createImage(TITLE, shownKymo, calibration);
+					shown.show();
+					image = shown;
+				}
+				else if(image.getWindow() != null) {
+					image.setStack(shownKymo);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Helper method for "run". Narrows the frames that may have changed down to the frames whose interpolated ROI did change, from the vertices alone.
+	 *
+	 * @param before the key frames the kymograph was made from
+	 * @param after the edited key frames
+	 * @param firstFrame the first frame that may have changed
+	 * @param lastFrame the last frame that may have changed
+	 *
+	 * @return the first and last frames whose interpolated ROI changed, or null if none did
+	 */
+	private static int[] changedFrames(KeyFrames before, KeyFrames after, int firstFrame, int lastFrame) {
+		
+		InterpolatedFrames beforeFrame = new InterpolatedFrames(1);
+		InterpolatedFrames afterFrame = new InterpolatedFrames(1);
+		
+		int firstChanged = -1;
+		int lastChanged = -1;
+		
+		for(int frame = firstFrame; frame <= lastFrame; frame++) {
+			
+			beforeFrame.fill(before, frame, frame, 0);
+			afterFrame.fill(after, frame, frame, 0);
+			
+			if(!beforeFrame.sameVertices(0, afterFrame, 0)) {
+				
+				if(firstChanged < 0) {
+					firstChanged = frame;
+				}
+				lastChanged = frame;
+			}
+		}
+		
+		return firstChanged < 0 ? null : new int[] {firstChanged, lastChanged};
+	}
+	
+	private static int max(int[] values) {
+		
+		int max = 0;
+		for(int value : values) {
+			max = Math.max(max, value);
+		}
+		return max;
+	}
+	
+	private static boolean sameAnchor(KeyFrames before, KeyFrames after) {
+		return before.anchorExists() == after.anchorExists() && before.getAnchorID() == after.getAnchorID();
+	}
+}
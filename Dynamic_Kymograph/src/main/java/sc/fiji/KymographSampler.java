@@ -0,0 +1,497 @@
+package sc.fiji;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.gui.Roi;
+
+import ij.measure.Calibration;
+
+import ij.process.Blitter;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * KymographSampler.java
+ * Purpose: samples the pixels along a polyline ROI straight from the image stack.
+ * Frames are read with getStack().getProcessor(n), so sampling never changes the displayed slice and never fires image or ROI listeners.
+ * Hyperstacks are read by channel, z-slice and time point: a kymograph has one row per time point and one image per channel, and z-slices are max-projected (or a single z-slice is used).
+ * A sampler only reads from the stack, so one instance can be shared by several threads.
+ *
+ * @version v1.6
+ */
+public class KymographSampler {
+	
+	private ImageStack stack;
+	private int imageType;
+	private float[] cTable;
+	
+	//hyperstack dimensions. A plain stack has one channel and one z-slice, and every slice is a frame
+	private int numChannels;
+	private int numSlices;
+	private int numFrames;
+	private int zSlice;	//the z-slice to sample, or 0 to sample the maximum projection over z
+	
+	/**
+	 * Creates a sampler for the stack of an image. Frames are the time points of a hyperstack.
+	 * An image without a time axis is sampled like a plain stack, with its z-slices as frames.
+	 *
+	 * @param image the image to sample from
+	 */
+	public KymographSampler(ImagePlus image) {
+		
+		this(image.getStack(), image.getType(), image.getCalibration());
+		
+		if(image.getNFrames() > 1) {
+			setDimensions(image.getNChannels(), image.getNSlices(), image.getNFrames());
+		}
+		else {
+			setDimensions(image.getNChannels(), 1, image.getNSlices());
+		}
+	}
+	
+	/**
+	 * Creates a sampler for a stack.
+	 *
+	 * @param stack the stack to sample from
+	 * @param imageType the ImagePlus type of the stack (GRAY8, GRAY16, GRAY32 or COLOR_RGB)
+	 * @param calibration the calibration of the stack. Its calibration function (if any) is applied the same way image.getProcessor() applies it
+	 */
+	public KymographSampler(ImageStack stack, int imageType, Calibration calibration) {
+		
+		this.stack = stack;
+		this.imageType = imageType;
+		
+		cTable = (calibration != null && calibration.calibrated()) ? calibration.getCTable() : null;
+		
+		numChannels = 1;
+		numSlices = 1;
+		numFrames = stack.getSize();
+		zSlice = 0;
+	}
+	
+	/**
+	 * Sets how the stack is split into channels, z-slices and frames (in the ImageJ order: channels vary fastest, then z-slices, then frames).
+	 *
+	 * @param numChannels the number of channels
+	 * @param numSlices the number of z-slices
+	 * @param numFrames the number of frames (time points)
+	 *
+	 * @throws IllegalArgumentException if the dimensions do not match the stack size
+	 */
+	public void setDimensions(int numChannels, int numSlices, int numFrames) {
+		
+		if(numChannels < 1 || numSlices < 1 || numFrames < 1 || numChannels * numSlices * numFrames != stack.getSize()) {
+			throw new IllegalArgumentException("KymographSampler error: " + numChannels + " x " + numSlices + " x " + numFrames + " does not match stack size " + stack.getSize());
+		}
+		
+		this.numChannels = numChannels;
+		this.numSlices = numSlices;
+		this.numFrames = numFrames;
+	}
+	
+	/**
+	 * Chooses the z-slice sampled on each frame. Only matters for hyperstacks with more than one z-slice.
+	 *
+	 * @param zSlice the z-slice (1 through the number of z-slices), or 0 to sample the maximum projection over z (the default)
+	 */
+	public void setZSlice(int zSlice) {
+		this.zSlice = Math.max(0, Math.min(zSlice, numSlices));
+	}
+	
+	public int getZSlice() {
+		return zSlice;
+	}
+	
+	/**
+	 * Returns the processor of the first channel of a frame, read straight from the stack.
+	 *
+	 * @param frame the frame number (1 through the number of frames)
+	 *
+	 * @return the processor of the frame
+	 */
+	public ImageProcessor getProcessor(int frame) {
+		return getProcessor(frame, 1);
+	}
+	
+	/**
+	 * Returns the processor of one channel of a frame, read straight from the stack.
+	 * With several z-slices, this is the maximum projection over z (a new processor) unless a single z-slice was chosen with "setZSlice".
+	 *
+	 * @param frame the frame number (1 through the number of frames)
+	 * @param channel the channel (1 through the number of channels)
+	 *
+	 * @return the processor of the channel on the frame
+	 */
+	public ImageProcessor getProcessor(int frame, int channel) {
+		
+		ImageProcessor ip;
+		
+		if(numSlices == 1 || zSlice > 0) {
+			ip = stack.getProcessor(getStackIndex(channel, Math.max(zSlice, 1), frame));
+		}
+		else {
+			ip = stack.getProcessor(getStackIndex(channel, 1, frame)).duplicate();
+			
+			for(int z = 2; z <= numSlices; z++) {
+				ip.copyBits(stack.getProcessor(getStackIndex(channel, z, frame)), 0, 0, Blitter.MAX);
+			}
+		}
+		ip.setCalibrationTable(cTable);
+		
+		return ip;
+	}
+	
+	/**
+	 * Returns the processors of every channel of a frame (see "getProcessor(int, int)").
+	 *
+	 * @param frame the frame number (1 through the number of frames)
+	 *
+	 * @return the processors of the frame, indexed by channel - 1
+	 */
+	public ImageProcessor[] getProcessors(int frame) {
+		
+		ImageProcessor[] ips = new ImageProcessor[numChannels];
+		
+		for(int channel = 1; channel <= numChannels; channel++) {
+			ips[channel - 1] = getProcessor(frame, channel);
+		}
+		
+		return ips;
+	}
+	
+	/**
+	 * @param channel the channel (1 through the number of channels)
+	 * @param z the z-slice (1 through the number of z-slices)
+	 * @param frame the frame (1 through the number of frames)
+	 *
+	 * @return the stack index (1 through the stack size) of the slice
+	 */
+	private int getStackIndex(int channel, int z, int frame) {
+		return ((frame - 1) * numSlices + (z - 1)) * numChannels + channel;
+	}
+	
+	/**
+	 * @return the ImagePlus type of the stack being sampled.
+	 */
+	public int getImageType() {
+		return imageType;
+	}
+	
+	/**
+	 * @return the number of frames (time points) in the stack being sampled.
+	 */
+	public int getNumFrames() {
+		return numFrames;
+	}
+	
+	/**
+	 * @return the number of channels in the stack being sampled. A kymograph has one image per channel.
+	 */
+	public int getNumChannels() {
+		return numChannels;
+	}
+	
+	/**
+	 * @return the number of z-slices in the stack being sampled.
+	 */
+	public int getNumSlices() {
+		return numSlices;
+	}
+	
+	/**
+	 * @return true if sampling a frame reads the whole frame (from memory, or from disk for a virtual stack). Reading frames ahead of sampling then pays off.
+	 */
+	public boolean readsWholeFrames() {
+		return true;
+	}
+	
+	/**
+	 * Walks (from start to end) on a polyline ROI to get the pixels along the way. See "SamplingPlan".
+	 *
+	 * @param roi the polyline ROI to walk along
+	 * @param ip the processor of the frame that the ROI is associated with
+	 * @param shift used to implement line width. Shifts the polyline up or down
+	 *
+	 * @return Array of pixels along the ROI. Length of the array is roughly the length of the ROI.
+	 */
+	public double[] getPixelsPolyline(Roi roi, ImageProcessor ip, int shift) {
+		
+		SamplingPlan plan = SamplingPlan.forShift(roi, shift);
+		
+		int length = plan.getLength();
+		double[] xs = plan.getXs();
+		double[] ys = plan.getYs();
+		
+		double[] values = new double[length];
+		
+		for (int i = 0; i < length; i++) {
+			values[i] = getPixel(ip, xs[i], ys[i]);
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * Returns the pixel value at specified coordinates. Returns greyscale or ARGB pixel depending on image type.
+	 *
+	 * @param ip the image (on a specific frame)
+	 * @param x x coordinate (NaN for a sample that the polyline walk never reached)
+	 * @param y y coordinate
+	 *
+	 * @return interpolated greyscale or ARGB pixel located at coordinates (x,y), or 0 if x is NaN.
+	 */
+	private double getPixel(ImageProcessor ip, double x, double y) {
+		
+		if (Double.isNaN(x)) {
+			return 0;
+		}
+		else if (imageType == ImagePlus.GRAY8 || imageType == ImagePlus.GRAY16 || imageType == ImagePlus.GRAY32) {
+			return ip.getInterpolatedValue(x, y);
+		}
+		else {
+			return ((ColorProcessor) ip).getInterpolatedRGBPixel(x, y);
+		}
+	}
+	
+	/**
+	 * Implements line width by averaging over multiple pixel arrays obtained by changing the "shift" parameter in "getPixelsPolyline."
+	 *
+	 * @param frame the frame number to read from the stack
+	 * @param roi the polyline ROI to walk along
+	 * @param lineWidth the number of "shifts" to average over
+	 *
+	 * @return elementwise average of the shifted pixel arrays.
+	 */
+	public double[] averageWidth(int frame, Roi roi, int lineWidth) {
+		return averageWidth(getProcessor(frame), new SamplingPlan(roi, lineWidth));
+	}
+	
+	/**
+	 * Implements line width by averaging over multiple pixel arrays obtained by changing the "shift" parameter in "getPixelsPolyline."
+	 *
+	 * @param ip the processor of the frame that the ROI is associated with
+	 * @param roi the polyline ROI to walk along
+	 * @param lineWidth the number of "shifts" to average over
+	 *
+	 * @return elementwise average of the shifted pixel arrays.
+	 */
+	public double[] averageWidth(ImageProcessor ip, Roi roi, int lineWidth) {
+		return averageWidth(ip, new SamplingPlan(roi, lineWidth));
+	}
+	
+	/**
+	 * Implements line width by averaging the samples of every shifted pass of a sampling plan.
+	 * The passes are added up in the same order as the shifted pixel arrays used to be (centre, then +1 and -1, +2 and -2, ...), so the result is unchanged.
+	 *
+	 * @param frame the frame number to read from the stack
+	 * @param plan the sampling plan of the ROI on this frame
+	 *
+	 * @return elementwise average of the shifted passes.
+	 */
+	public double[] averageWidth(int frame, SamplingPlan plan) {
+		return averageWidth(frame, 1, plan);
+	}
+	
+	/**
+	 * Implements line width by averaging the samples of every shifted pass of a sampling plan, on one channel of a frame.
+	 *
+	 * @param frame the frame number to read from the stack
+	 * @param channel the channel to read
+	 * @param plan the sampling plan of the ROI on this frame
+	 *
+	 * @return elementwise average of the shifted passes.
+	 */
+	public double[] averageWidth(int frame, int channel, SamplingPlan plan) {
+		return averageWidth(getProcessor(frame, channel), plan);
+	}
+	
+	/**
+	 * Implements line width by averaging the samples of every shifted pass of a sampling plan.
+	 * Dispatches once per row to the kernel for the pixel type of the frame (see "SamplingKernels"). Frames with a calibration function use the generic path.
+	 *
+	 * @param ip the processor of the frame that the plan is sampled on
+	 * @param plan the sampling plan of the ROI on this frame
+	 *
+	 * @return elementwise average of the shifted passes.
+	 */
+	public double[] averageWidth(ImageProcessor ip, SamplingPlan plan) {
+		
+		if (ip.getCalibrationTable() == null) {
+			
+			Object pixels = ip.getPixels();
+			int width = ip.getWidth();
+			int height = ip.getHeight();
+			
+			if (pixels instanceof byte[]) {
+				return SamplingKernels.averageWidth((byte[]) pixels, width, height, plan);
+			}
+			else if (pixels instanceof short[]) {
+				return SamplingKernels.averageWidth((short[]) pixels, width, height, plan);
+			}
+			else if (pixels instanceof float[]) {
+				return SamplingKernels.averageWidth((float[]) pixels, width, height, plan);
+			}
+			else if (pixels instanceof int[]) {
+				return SamplingKernels.averageWidth((int[]) pixels, width, height, plan);
+			}
+		}
+		
+		return averageWidthGeneric(ip, plan);
+	}
+	
+	/**
+	 * Same as "averageWidth(ImageProcessor, SamplingPlan)", but reads every sample through the ImageProcessor interpolation methods.
+	 *
+	 * @param ip the processor of the frame that the plan is sampled on
+	 * @param plan the sampling plan of the ROI on this frame
+	 *
+	 * @return elementwise average of the shifted passes.
+	 */
+	public double[] averageWidthGeneric(ImageProcessor ip, SamplingPlan plan) {
+		
+		if (imageType == ImagePlus.COLOR_RGB) {
+			return averageWidthRGB((ColorProcessor) ip, plan);
+		}
+		
+		int length = plan.getLength();
+		int numShifts = plan.getNumShifts();
+		int lineWidth = plan.getLineWidth();
+		double[] xs = plan.getXs();
+		double[] ys = plan.getYs();
+		
+		double[] pixels = new double[length];
+		
+		for (int i = 0; i < length; i++) {
+			
+			double sum = getPixel(ip, xs[i], ys[i]);
+			
+			for (int plus = length + i; plus < numShifts * length; plus += 2 * length) {
+				int minus = plus + length;
+				sum += getPixel(ip, xs[plus], ys[plus]) + getPixel(ip, xs[minus], ys[minus]);
+			}
+			
+			pixels[i] = sum / lineWidth;
+		}
+		
+		return pixels;
+	}
+	
+	/**
+	 * Helper method for "averageWidthGeneric". Averages a RGB frame channel by channel, like "SamplingKernels.averageWidth(int[], int, int, SamplingPlan)".
+	 *
+	 * @param ip the processor of the frame that the plan is sampled on
+	 * @param plan the sampling plan of the ROI on this frame
+	 *
+	 * @return elementwise average of the shifted passes, as ARGB values.
+	 */
+	private double[] averageWidthRGB(ColorProcessor ip, SamplingPlan plan) {
+		
+		int length = plan.getLength();
+		int numShifts = plan.getNumShifts();
+		int lineWidth = plan.getLineWidth();
+		double[] xs = plan.getXs();
+		double[] ys = plan.getYs();
+		
+		double[] pixels = new double[length];
+		
+		for (int i = 0; i < length; i++) {
+			
+			int red = 0;
+			int green = 0;
+			int blue = 0;
+			
+			for (int sample = i; sample < numShifts * length; sample += length) {
+				
+				int argb = (int) getPixel(ip, xs[sample], ys[sample]);
+				
+				red += (argb >> 16) & 0xff;
+				green += (argb >> 8) & 0xff;
+				blue += argb & 0xff;
+			}
+			
+			pixels[i] = SamplingKernels.averageRGB(red, green, blue, lineWidth);
+		}
+		
+		return pixels;
+	}
+	
+	/**
+	 * Creates an empty kymograph of the same type as the stack being sampled.
+	 *
+	 * @param kymoLength the width of the kymograph
+	 * @param kymoHeight the height of the kymograph
+	 *
+	 * @return the ImageProcessor of the kymograph
+	 */
+	public ImageProcessor createKymograph(int kymoLength, int kymoHeight) {
+		
+		if(imageType == ImagePlus.GRAY8) {
+			return new ByteProcessor(kymoLength, kymoHeight);
+		}
+		else if(imageType == ImagePlus.GRAY16) {
+			return new ShortProcessor(kymoLength, kymoHeight);
+		}
+		else if(imageType  == ImagePlus.GRAY32) {
+			return new FloatProcessor(kymoLength, kymoHeight);
+		}
+		else {
+			return new ColorProcessor(kymoLength, kymoHeight);
+		}
+	}
+	
+	/**
+	 * Used to place a pixel value at location (x,y) in the kymograph.
+	 *
+	 * @param ip the ImageProcessor of the kymograph
+	 * @param x the x-coordinate in the kymograph
+	 * @param y the y-coordinate in the kymograph
+	 * @param value the pixel value (either greyscale or ARGB) to place at (x,y)
+	 */
+	public void putPixel(ImageProcessor ip, int x, int y, double value) {
+		
+		if (imageType == ImagePlus.GRAY8 || imageType == ImagePlus.GRAY16 || imageType == ImagePlus.GRAY32) {
+			ip.putPixelValue(x, y, value);
+		}
+		else {
+			((ColorProcessor) ip).putPixel(x, y, (int) value);
+		}
+	}
+	
+	/**
+	 * Writes a whole (aligned) row into the kymograph, straight into its pixel array. Same result as calling "putPixel" for each value.
+	 * Rows outside the kymograph are ignored, like putPixel ignores pixels outside it.
+	 *
+	 * @param ip the ImageProcessor of the kymograph
+	 * @param y the row of the kymograph
+	 * @param values the pixel values (either greyscale or ARGB) of the row
+	 */
+	public void putRow(ImageProcessor ip, int y, double[] values) {
+		
+		int width = ip.getWidth();
+		
+		if (y < 0 || y >= ip.getHeight()) {
+			return;
+		}
+		
+		int count = Math.min(width, values.length);
+		int offset = y * width;
+		Object pixels = ip.getPixels();
+		
+		if (pixels instanceof byte[]) {
+			SamplingKernels.putRow((byte[]) pixels, offset, values, count);
+		}
+		else if (pixels instanceof short[]) {
+			SamplingKernels.putRow((short[]) pixels, offset, values, count);
+		}
+		else if (pixels instanceof float[]) {
+			SamplingKernels.putRow((float[]) pixels, offset, values, count);
+		}
+		else {
+			SamplingKernels.putRow((int[]) pixels, offset, values, count);
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package sc.fiji;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * KymographSession.java
+ * Purpose: saves and loads the key frames of a session (one set of key frames per traced filament, with its anchor point and interpolation) and the line width.
+ * Uses a compact binary layout, so even thousands of key frames are written and read in one pass with bulk float transfers:
+ *
+ * int magic ("DKYS"), int version, int lineWidth, int number of tracks, then for each track:
+ *     byte anchor exists, int anchorID, byte interpolation (KeyFrames.LINEAR or KeyFrames.CUBIC), int number of key frames, then for each key frame:
+ *         int frame, int number of vertices n, float[n] x, float[n] y
+ *
+ * All values are big-endian. Version 1 files, which have no interpolation byte, are still read, as linear.
+ *
+ * @version v1.6
+ */
+public class KymographSession {
+	
+	static final int MAGIC = 0x444B5953;	//"DKYS"
+	static final int VERSION = 2;
+	static final String EXTENSION = ".dkys";
+	
+	private int lineWidth;
+	private List<KeyFrames> tracks;
+	
+	/**
+	 * @param lineWidth the line width of the session
+	 */
+	public KymographSession(int lineWidth) {
+		
+		this.lineWidth = lineWidth;
+		tracks = new ArrayList<KeyFrames>();
+	}
+	
+	/**
+	 * Adds the key frames of one traced filament.
+	 *
+	 * @param keyFrames the key frames (and anchor point) of the filament
+	 */
+	public void addTrack(KeyFrames keyFrames) {
+		tracks.add(keyFrames);
+	}
+	
+	public List<KeyFrames> getTracks() {
+		return tracks;
+	}
+	
+	public int getLineWidth() {
+		return lineWidth;
+	}
+	
+	/**
+	 * Checks that the session can be loaded on a stack: every track has at least one key frame, every key frame is on a frame of the stack
+	 * (1 through numFrames, like the key frames read by "KymographBatch") and has vertices, and every anchor point is a vertex of every key frame of its track.
+	 *
+	 * @param numFrames the number of frames (time points) in the stack
+	 *
+	 * @throws IOException if the session does not fit the stack, saying why
+	 */
+	public void checkFits(int numFrames) throws IOException {
+		
+		if(tracks.isEmpty()) {
+			throw new IOException("no key frames in session");
+		}
+		
+		for(int t = 0; t < tracks.size(); t++) {
+			
+			KeyFrames track = tracks.get(t);
+			
+			if(track.isEmpty()) {
+				throw new IOException(trackName(t) + " of the session has no key frames");
+			}
+			
+			for(int index = 0; index < track.size(); index++) {
+				
+				int frame = track.getFrame(index);
+				
+				if(frame < 1 || frame > numFrames) {
+					throw new IOException(trackName(t) + " of the session has a key frame on frame " + frame + ", but the stack has frames 1 to " + numFrames);
+				}
+				if(track.getNPoints(index) == 0) {
+					throw new IOException(trackName(t) + " of the session has no vertices on frame " + frame);
+				}
+				if(track.anchorExists() && track.getAnchorID() >= track.getNPoints(index)) {
+					throw new IOException(trackName(t) + " of the session has its anchor point on vertex " + (track.getAnchorID() + 1) + ", but only "
+							+ track.getNPoints(index) + " vertices on frame " + frame);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return how the plugin shows track t: the first track is the current ROI, the others the saved ROIs, numbered from 1
+	 */
+	private static String trackName(int t) {
+		return t == 0 ? "the current ROI" : "saved ROI " + t;
+	}
+	
+	/**
+	 * Writes the session to a file.
+	 *
+	 * @param file the session file
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save(File file) throws IOException {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(size());
+		
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(lineWidth);
+		buffer.putInt(tracks.size());
+		
+		for(KeyFrames track : tracks) {
+			
+			buffer.put((byte) (track.anchorExists() ? 1 : 0));
+			buffer.putInt(track.getAnchorID());
+			buffer.put((byte) track.getInterpolation());
+			buffer.putInt(track.size());
+			
+			for(int index = 0; index < track.size(); index++) {
+				
+				int n = track.getNPoints(index);
+				
+				buffer.putInt(track.getFrame(index));
+				buffer.putInt(n);
+				
+				buffer.asFloatBuffer().put(track.getXPoints(index), 0, n);
+				buffer.position(buffer.position() + 4 * n);
+				buffer.asFloatBuffer().put(track.getYPoints(index), 0, n);
+				buffer.position(buffer.position() + 4 * n);
+			}
+		}
+		
+		Files.write(file.toPath(), buffer.array());
+	}
+	
+	/**
+	 * Reads a session from a file.
+	 *
+	 * @param file the session file
+	 *
+	 * @return the session
+	 *
+	 * @throws IOException if the file cannot be read or is not a session file
+	 */
+	public static KymographSession load(File file) throws IOException {
+		
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		
+		try {
+			if(buffer.getInt() != MAGIC) {
+				throw new IOException("KymographSession error: " + file + " is not a session file");
+			}
+			
+			int version = buffer.getInt();
+			
+			if(version != 1 && version != VERSION) {
+				throw new IOException("KymographSession error: unsupported session version " + version);
+			}
+			
+			KymographSession session = new KymographSession(buffer.getInt());
+			int numTracks = buffer.getInt();
+			
+			for(int t = 0; t < numTracks; t++) {
+				
+				KeyFrames track = new KeyFrames();
+				
+				boolean anchorExists = buffer.get() != 0;
+				int anchorID = buffer.getInt();
+				
+				if(anchorID < 0) {
+					throw new IOException("KymographSession error: " + file + " is damaged");
+				}
+				int interpolation = version >= 2 ? buffer.get() : KeyFrames.LINEAR;
+				int numKeyFrames = buffer.getInt();
+				
+				if(interpolation != KeyFrames.LINEAR && interpolation != KeyFrames.CUBIC) {
+					throw new IOException("KymographSession error: " + file + " is damaged");
+				}
+				
+				for(int k = 0; k < numKeyFrames; k++) {
+					
+					int frame = buffer.getInt();
+					int n = buffer.getInt();
+					
+					if(n < 0 || 8L * n > buffer.remaining()) {
+						throw new IOException("KymographSession error: " + file + " is damaged");
+					}
+					
+					float[] x = new float[n];
+					float[] y = new float[n];
+					
+					buffer.asFloatBuffer().get(x);
+					buffer.position(buffer.position() + 4 * n);
+					buffer.asFloatBuffer().get(y);
+					buffer.position(buffer.position() + 4 * n);
+					
+					track.addKeyFrame(new KeyFrame(frame, x, y, n));
+				}
+				
+				if(anchorExists) {
+					track.updateAnchor(anchorID);
+				}
+				track.setInterpolation(interpolation);	//after the key frames, so the cubics are computed once
+				
+				session.addTrack(track);
+			}
+			
+			return session;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("KymographSession error: " + file + " is truncated");
+		}
+	}
+	
+	/**
+	 * @return the size of the session file in bytes
+	 */
+	private int size() {
+		
+		long size = 4 * 4;
+		
+		for(KeyFrames track : tracks) {
+			
+			size += 1 + 4 + 1 + 4;
+			
+			for(int index = 0; index < track.size(); index++) {
+				size += 4 + 4 + 8L * track.getNPoints(index);
+			}
+		}
+		
+		if(size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("KymographSession error: session too large");
+		}
+		
+		return (int) size;
+	}
+}
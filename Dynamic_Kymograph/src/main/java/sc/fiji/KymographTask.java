@@ -0,0 +1,152 @@
+package sc.fiji;
+
+import java.awt.EventQueue;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.CancellationException;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.measure.Calibration;
+
+/**
+ * KymographTask.java
+ * Purpose: assembles kymographs on a background thread, so the plugin window and the image stay responsive on long stacks.
+ * The progress is shown on the ImageJ progress bar, and the task can be cancelled at any time (between frames).
+ * The kymographs are only shown once they are complete, on the event dispatch thread.
+ * The run can be timed (see "KymographMetrics"): the metrics are then shown in the "Kymograph metrics" table, emitted to Java Flight Recorder and optionally appended to a CSV file.
+ *
+ * @version v1.6
+ */
+public class KymographTask implements Runnable {
+	
+	private KymographAssembler assembler;
+	private String[] titles;
+	private Calibration calibration;
+	
+	private Thread thread;
+	
+	private KymographMetrics metrics;	//null: not timed
+	private File metricsFile;	//null: not saved
+	
+	/**
+	 * @param assembler the assembler, with its tracks added. Its key frames must not be changed while the task runs (pass copies)
+	 * @param titles the title of the kymograph of each track
+	 * @param calibration the calibration of the stack
+	 */
+	public KymographTask(KymographAssembler assembler, String[] titles, Calibration calibration) {
+		
+		this.assembler = assembler;
+		this.titles = titles;
+		this.calibration = calibration;
+		
+		assembler.setShowProgress(true);
+	}
+	
+	/**
+	 * Times the run. Must be called before "start".
+	 * 
+	 * @param metrics collects the metrics of the run
+	 * @param metricsFile the CSV file to append the metrics to (null to not save them)
+	 */
+	public void setMetrics(KymographMetrics metrics, File metricsFile) {
+		
+		this.metrics = metrics;
+		this.metricsFile = metricsFile;
+		
+		assembler.setMetrics(metrics);
+	}
+	
+	/**
+	 * Starts assembling on a new background thread. Returns straight away.
+	 */
+	public synchronized void start() {
+		
+		thread = new Thread(this, "Kymograph assembly");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Cancels the task. Nothing is shown if it had not finished yet.
+	 */
+	public void cancel() {
+		assembler.cancel();
+	}
+	
+	/**
+	 * @return true while the task is running
+	 */
+	public synchronized boolean isRunning() {
+		return thread != null && thread.isAlive();
+	}
+	
+	/**
+	 * Assembles the kymographs, on the background thread, then shows them.
+	 */
+	@Override
+	public void run() {
+		
+		IJ.showStatus("Making kymograph...");
+		
+		try {
+			if(metrics != null) {
+				metrics.start();
+			}
+			
+			ImageStack[] kymos = assembler.assembleAll();
+			
+			if(metrics != null) {
+				metrics.stop();
+				saveMetrics();
+			}
+			
+			final ImagePlus[] images = new ImagePlus[kymos.length];
+			
+			for(int t = 0; t < kymos.length; t++) {
+				images[t] = KymographAssembler.createImage(titles[t], kymos[t], calibration);
+			}
+			
+			EventQueue.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					for(ImagePlus image : images) {
+						image.show();
+					}
+					if(metrics != null) {
+						metrics.showSummary();
+					}
+				}
+			});
+			
+			IJ.showStatus("");
+		} catch (CancellationException e) {
+			IJ.showStatus("Kymograph cancelled");
+			KymographLog.info("Kymograph cancelled");
+		} catch (RuntimeException e) {
+			IJ.handleException(e);
+		} finally {
+			IJ.showProgress(1.0);
+		}
+	}
+	
+	/**
+	 * Helper method for "run". Emits the metrics to Java Flight Recorder, and appends them to the CSV file.
+	 */
+	private void saveMetrics() {
+		
+		metrics.emitJfrEvent();
+		
+		if(metricsFile != null) {
+			try {
+				metrics.appendCsv(metricsFile);
+			} catch (IOException e) {
+				KymographLog.info("KymographTask error: could not save metrics to %s: %s", metricsFile, e.getMessage());
+			}
+		}
+	}
+}
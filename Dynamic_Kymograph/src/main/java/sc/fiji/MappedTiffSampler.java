@@ -0,0 +1,410 @@
+package sc.fiji;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.ImagePlus;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+/**
+ * MappedTiffSampler.java
+ * Purpose: samples an uncompressed TIFF stack straight from the file, memory-mapped with FileChannel.map.
+ * The strip offsets of every frame are parsed once, and each sample reads only the (up to four) pixels it interpolates between,
+ * so a kymograph run reads the pages under the ROI rather than copying every frame into a Java array.
+ * The interpolation mirrors "SamplingKernels", so the results are the same as sampling the frames in memory.
+ * The mapped buffers are only read with absolute gets, so one instance can be shared by several threads.
+ *
+ * @version v1.6
+ */
+public class MappedTiffSampler extends KymographSampler {
+	
+	static final long SEGMENT_SIZE = 1L << 30;	//files larger than this are mapped in several segments
+	static final int SEGMENT_OVERLAP = 8;	//each segment also maps the first bytes of the next one, so a pixel never straddles two segments
+	
+	private MappedByteBuffer[] segments;
+	
+	private int width;
+	private int height;
+	private int fileType;
+	private int bytesPerPixel;
+	
+	//file position of every strip of every frame, and the number of rows in each strip of a frame
+	private long[][] stripOffsets;
+	private int[] rowsPerStrip;
+	
+	/**
+	 * Opens the TIFF file that an image was read from for mapped sampling.
+	 *
+	 * @param image the image, opened from an uncompressed TIFF file without a calibration function
+	 *
+	 * @return a sampler reading from the file
+	 *
+	 * @throws IOException if the image was not read from a TIFF file, the file is compressed or of an unsupported pixel type, or the image is a hyperstack
+	 */
+	public static MappedTiffSampler open(ImagePlus image) throws IOException {
+		
+		FileInfo fi = image.getOriginalFileInfo();
+		
+		if(fi == null || fi.fileFormat != FileInfo.TIFF || fi.directory == null || fi.fileName == null) {
+			throw new IOException("MappedTiffSampler error: image was not opened from a TIFF file");
+		}
+		if(image.getCalibration().calibrated()) {
+			throw new IOException("MappedTiffSampler error: image has a calibration function");
+		}
+		if(image.getNChannels() > 1 || (image.getNSlices() > 1 && image.getNFrames() > 1)) {
+			throw new IOException("MappedTiffSampler error: image is a hyperstack");
+		}
+		
+		FileInfo[] info = new TiffDecoder(fi.directory, fi.fileName).getTiffInfo();
+		
+		return new MappedTiffSampler(image, new File(fi.directory, fi.fileName), info);
+	}
+	
+	private MappedTiffSampler(ImagePlus image, File file, FileInfo[] info) throws IOException {
+		
+		super(image);
+		
+		if(info == null || info.length == 0) {
+			throw new IOException("MappedTiffSampler error: no images in " + file);
+		}
+		
+		FileInfo first = info[0];
+		
+		width = first.width;
+		height = first.height;
+		fileType = first.fileType;
+		bytesPerPixel = bytesPerPixel(fileType);
+		
+		int numFrames = image.getStackSize();
+		
+		if(width != image.getWidth() || height != image.getHeight()) {
+			throw new IOException("MappedTiffSampler error: image size does not match " + file);
+		}
+		
+		stripOffsets = new long[numFrames + 1][];
+		rowsPerStrip = new int[numFrames + 1];
+		
+		if(info.length == 1 && first.nImages >= numFrames) {
+			
+			//ImageJ stack: all frames stored one after the other
+			checkUncompressed(first, file);
+			
+			long frameSize = (long) width * height * bytesPerPixel + (long) first.gapBetweenImages;
+			
+			for(int frame = 1; frame <= numFrames; frame++) {
+				stripOffsets[frame] = new long[] {first.getOffset() + (frame - 1) * frameSize};
+				rowsPerStrip[frame] = height;
+			}
+		}
+		else if(info.length >= numFrames) {
+			
+			//one image file directory per frame
+			for(int frame = 1; frame <= numFrames; frame++) {
+				
+				FileInfo fi = info[frame - 1];
+				checkUncompressed(fi, file);
+				
+				if(fi.width != width || fi.height != height || fi.fileType != fileType) {
+					throw new IOException("MappedTiffSampler error: frames of different size or type in " + file);
+				}
+				
+				if(fi.stripOffsets == null || fi.stripOffsets.length == 0) {
+					stripOffsets[frame] = new long[] {fi.getOffset()};
+					rowsPerStrip[frame] = height;
+				}
+				else {
+					stripOffsets[frame] = new long[fi.stripOffsets.length];
+					
+					for(int strip = 0; strip < fi.stripOffsets.length; strip++) {
+						stripOffsets[frame][strip] = fi.stripOffsets[strip] & 0xffffffffL;	//TIFF offsets are unsigned
+					}
+					rowsPerStrip[frame] = fi.rowsPerStrip > 0 ? fi.rowsPerStrip : height;
+				}
+			}
+		}
+		else {
+			throw new IOException("MappedTiffSampler error: " + file + " has fewer images than the stack");
+		}
+		
+		segments = map(file, first.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+	}
+	
+	/**
+	 * Reads only the pixels that each sample needs. A single frame is never read as a whole.
+	 */
+	@Override
+	public boolean readsWholeFrames() {
+		return false;
+	}
+	
+	/**
+	 * Averages the samples of every shifted pass of a sampling plan, reading the pixels straight from the mapped file.
+	 * The passes are added up in the same order as "SamplingKernels.averageWidth".
+	 *
+	 * @param frame the frame number
+	 * @param channel the channel (always 1, hyperstacks are not mapped)
+	 * @param plan the sampling plan of the ROI on this frame
+	 *
+	 * @return elementwise average of the shifted passes.
+	 */
+	@Override
+	public double[] averageWidth(int frame, int channel, SamplingPlan plan) {
+		
+		int length = plan.getLength();
+		int end = plan.getNumShifts() * length;
+		int lineWidth = plan.getLineWidth();
+		double[] xs = plan.getXs();
+		double[] ys = plan.getYs();
+		
+		long[] strips = stripOffsets[frame];
+		int rows = rowsPerStrip[frame];
+		
+		if(fileType == FileInfo.RGB) {
+			return averageWidthRGB(strips, rows, plan);
+		}
+		
+		double[] row = new double[length];
+		
+		for (int i = 0; i < length; i++) {
+			
+			double sum = interpolate(strips, rows, xs[i], ys[i]);
+			
+			for (int plus = length + i; plus < end; plus += 2 * length) {
+				int minus = plus + length;
+				sum += interpolate(strips, rows, xs[plus], ys[plus]) + interpolate(strips, rows, xs[minus], ys[minus]);
+			}
+			
+			row[i] = sum / lineWidth;
+		}
+		
+		return row;
+	}
+	
+	/**
+	 * Helper method for "averageWidth". Averages a RGB frame channel by channel, the same as "SamplingKernels.averageWidth(int[], int, int, SamplingPlan)".
+	 */
+	private double[] averageWidthRGB(long[] strips, int rows, SamplingPlan plan) {
+		
+		int length = plan.getLength();
+		int end = plan.getNumShifts() * length;
+		int lineWidth = plan.getLineWidth();
+		double[] xs = plan.getXs();
+		double[] ys = plan.getYs();
+		
+		double[] row = new double[length];
+		
+		for (int i = 0; i < length; i++) {
+			
+			int sample = interpolateRGB(strips, rows, xs[i], ys[i]);
+			int red = (sample >> 16) & 0xff;
+			int green = (sample >> 8) & 0xff;
+			int blue = sample & 0xff;
+			
+			for (int plus = length + i; plus < end; plus += 2 * length) {
+				int minus = plus + length;
+				int plusSample = interpolateRGB(strips, rows, xs[plus], ys[plus]);
+				int minusSample = interpolateRGB(strips, rows, xs[minus], ys[minus]);
+				
+				red += ((plusSample >> 16) & 0xff) + ((minusSample >> 16) & 0xff);
+				green += ((plusSample >> 8) & 0xff) + ((minusSample >> 8) & 0xff);
+				blue += (plusSample & 0xff) + (minusSample & 0xff);
+			}
+			
+			row[i] = SamplingKernels.averageRGB(red, green, blue, lineWidth);
+		}
+		
+		return row;
+	}
+	
+	/**
+	 * Bilinear interpolation on a greyscale frame, the same as "SamplingKernels.interpolate".
+	 */
+	private double interpolate(long[] strips, int rows, double x, double y) {
+		
+		if (x >= 0.0 && y >= 0.0 && x < width - 1.0 && y < height - 1.0) {
+			
+			int xbase = (int) x;
+			int ybase = (int) y;
+			double xFraction = x - xbase;
+			double yFraction = y - ybase;
+			
+			double lowerLeft = getValue(strips, rows, xbase, ybase);
+			double lowerRight = getValue(strips, rows, xbase + 1, ybase);
+			double upperRight = getValue(strips, rows, xbase + 1, ybase + 1);
+			double upperLeft = getValue(strips, rows, xbase, ybase + 1);
+			
+			double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+			double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+			return lowerAverage + yFraction * (upperAverage - lowerAverage);
+		}
+		else if (x >= -1.0 && y >= -1.0 && x < width && y < height) {
+			
+			int xbase = (int) Math.floor(x);
+			int ybase = (int) Math.floor(y);
+			double xFraction = x - xbase;
+			double yFraction = y - ybase;
+			int x0 = clamp(xbase, width), x1 = clamp(xbase + 1, width);
+			int y0 = clamp(ybase, height), y1 = clamp(ybase + 1, height);
+			
+			double lowerLeft = getValue(strips, rows, x0, y0);
+			double lowerRight = getValue(strips, rows, x1, y0);
+			double upperRight = getValue(strips, rows, x1, y1);
+			double upperLeft = getValue(strips, rows, x0, y1);
+			
+			double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+			double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+			return lowerAverage + yFraction * (upperAverage - lowerAverage);
+		}
+		else {
+			return 0.0;
+		}
+	}
+	
+	/**
+	 * Bilinear interpolation of each channel on a RGB frame, the same as "SamplingKernels.interpolateRGB".
+	 */
+	private int interpolateRGB(long[] strips, int rows, double x, double y) {
+		
+		if (Double.isNaN(x) || width == 1 || height == 1) {
+			return 0;
+		}
+		
+		if (x < 0.0) x = 0.0;
+		if (x >= width - 1.0) x = width - 1.001;
+		if (y < 0.0) y = 0.0;
+		if (y >= height - 1.0) y = height - 1.001;
+		
+		int xbase = (int) x;
+		int ybase = (int) y;
+		double xFraction = x - xbase;
+		double yFraction = y - ybase;
+		
+		int lowerLeft = getRGB(strips, rows, xbase, ybase);
+		int lowerRight = getRGB(strips, rows, xbase + 1, ybase);
+		int upperRight = getRGB(strips, rows, xbase + 1, ybase + 1);
+		int upperLeft = getRGB(strips, rows, xbase, ybase + 1);
+		
+		int r = interpolateChannel(lowerLeft, lowerRight, upperRight, upperLeft, 16, xFraction, yFraction);
+		int g = interpolateChannel(lowerLeft, lowerRight, upperRight, upperLeft, 8, xFraction, yFraction);
+		int b = interpolateChannel(lowerLeft, lowerRight, upperRight, upperLeft, 0, xFraction, yFraction);
+		
+		return 0xff000000 | ((r & 0xff) << 16) | ((g & 0xff) << 8) | (b & 0xff);
+	}
+	
+	private static int interpolateChannel(int lowerLeft, int lowerRight, int upperRight, int upperLeft, int shift, double xFraction, double yFraction) {
+		
+		int ll = (lowerLeft >> shift) & 0xff;
+		int lr = (lowerRight >> shift) & 0xff;
+		int ur = (upperRight >> shift) & 0xff;
+		int ul = (upperLeft >> shift) & 0xff;
+		
+		double upperAverage = ul + xFraction * (ur - ul);
+		double lowerAverage = ll + xFraction * (lr - ll);
+		return (int) (lowerAverage + yFraction * (upperAverage - lowerAverage) + 0.5);
+	}
+	
+	private static int clamp(int i, int size) {
+		return i <= 0 ? 0 : (i >= size ? size - 1 : i);
+	}
+	
+	/**
+	 * @return the file position of pixel (x,y) of a frame
+	 */
+	private long position(long[] strips, int rows, int x, int y) {
+		return strips[y / rows] + ((long) (y % rows) * width + x) * bytesPerPixel;
+	}
+	
+	/**
+	 * Reads a greyscale pixel value straight from the mapped file.
+	 */
+	private double getValue(long[] strips, int rows, int x, int y) {
+		
+		long position = position(strips, rows, x, y);
+		MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+		int index = (int) (position % SEGMENT_SIZE);
+		
+		switch (fileType) {
+			case FileInfo.GRAY16_UNSIGNED:
+				return segment.getShort(index) & 0xffff;
+			case FileInfo.GRAY32_FLOAT:
+				return segment.getFloat(index);
+			default:
+				return segment.get(index) & 0xff;
+		}
+	}
+	
+	/**
+	 * Reads a RGB pixel (three bytes) straight from the mapped file.
+	 */
+	private int getRGB(long[] strips, int rows, int x, int y) {
+		
+		long position = position(strips, rows, x, y);
+		MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+		int index = (int) (position % SEGMENT_SIZE);
+		
+		int r = segment.get(index) & 0xff;
+		int g = segment.get(index + 1) & 0xff;
+		int b = segment.get(index + 2) & 0xff;
+		
+		return 0xff000000 | (r << 16) | (g << 8) | b;
+	}
+	
+	private static int bytesPerPixel(int fileType) throws IOException {
+		
+		switch (fileType) {
+			case FileInfo.GRAY8:
+			case FileInfo.COLOR8:
+				return 1;
+			case FileInfo.GRAY16_UNSIGNED:
+				return 2;
+			case FileInfo.GRAY32_FLOAT:
+				return 4;
+			case FileInfo.RGB:
+				return 3;
+			default:
+				throw new IOException("MappedTiffSampler error: unsupported pixel type " + fileType);
+		}
+	}
+	
+	private static void checkUncompressed(FileInfo fi, File file) throws IOException {
+		
+		if(fi.compression != FileInfo.COMPRESSION_NONE) {
+			throw new IOException("MappedTiffSampler error: " + file + " is compressed");
+		}
+	}
+	
+	/**
+	 * Maps the whole file read-only, in segments of SEGMENT_SIZE bytes (plus SEGMENT_OVERLAP bytes of the next segment).
+	 * The mappings stay valid after the file is closed.
+	 */
+	private static MappedByteBuffer[] map(File file, ByteOrder order) throws IOException {
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			
+			for (int i = 0; i < segments.length; i++) {
+				long start = i * SEGMENT_SIZE;
+				long length = Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, size - start);
+				
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+				segments[i].order(order);
+			}
+			
+			return segments;
+		} finally {
+			raf.close();
+		}
+	}
+}
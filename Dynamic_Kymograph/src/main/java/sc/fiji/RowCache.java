@@ -0,0 +1,116 @@
+package sc.fiji;
+
+import java.util.Arrays;
+
+/**
+ * RowCache.java
+ * Purpose: keeps the sampled (unaligned) kymograph row of every frame, so that assembling the same ROIs again only repeats the alignment and the writes.
+ * A row is keyed by its frame, the vertices of the interpolated ROI it was sampled along, the line width and the z-slice sampled.
+ * The vertices are compared exactly rather than through a hash, so a row sampled along a different ROI is never returned.
+ * The pixels of the frame are not part of the key. Instead, each row keeps the modification stamp of the stack it was sampled from, and a row with an older stamp is a miss
+ * (the plugin bumps the stamp with "stackModified" when the image is edited).
+ * Each frame holds one row, replaced when the ROI on that frame changes.
+ * Not synchronized: each frame must only be used by one thread at a time, which is how "KymographAssembler" splits the frames.
+ *
+ * @version v1.6
+ */
+public class RowCache {
+	
+	private KymographSampler sampler;
+	private Row[] rows;	//indexed by frame
+	private volatile int stamp;	//bumped whenever the pixels of the stack may have changed
+	
+	/**
+	 * @param sampler the sampler the rows are sampled with
+	 */
+	public RowCache(KymographSampler sampler) {
+		
+		this.sampler = sampler;
+		rows = new Row[sampler.getNumFrames() + 1];
+	}
+	
+	/**
+	 * Records that the pixels of the stack may have changed, so every row kept so far is stale.
+	 * Rows sampled by an assembly that started before this call are not kept either (see "put").
+	 */
+	public void stackModified() {
+		stamp++;
+	}
+	
+	/**
+	 * @return the current modification stamp of the stack, to pass to "put" with the rows sampled from now on
+	 */
+	public int getStamp() {
+		return stamp;
+	}
+	
+	/**
+	 * Looks up the rows of a frame.
+	 *
+	 * @param frame the frame
+	 * @param frames the interpolated frames holding the ROI on that frame
+	 * @param slot the slot of the ROI
+	 * @param lineWidth the line width
+	 *
+	 * @return the rows sampled along the same ROI, with the same line width (one per channel) since the stack was last modified, or null if there are none
+	 */
+	public double[][] get(int frame, InterpolatedFrames frames, int slot, int lineWidth) {
+		
+		Row row = rows[frame];
+		
+		if(row == null || row.stamp != stamp || row.lineWidth != lineWidth || row.zSlice != sampler.getZSlice() || !frames.sameVertices(slot, row.xpoints, row.ypoints)) {
+			return null;
+		}
+		
+		return row.pixels;
+	}
+	
+	/**
+	 * Keeps the rows of a frame, replacing the rows kept for it before.
+	 * The rows are dropped if the stack was modified since the stamp was taken, as they may have been sampled from the old pixels.
+	 *
+	 * @param frame the frame
+	 * @param frames the interpolated frames holding the ROI the rows were sampled along
+	 * @param slot the slot of the ROI
+	 * @param lineWidth the line width
+	 * @param sampledStamp the modification stamp (see "getStamp") taken before the sampling started
+	 * @param pixels the rows (one per channel). Not copied, so they must not be changed afterwards
+	 */
+	public void put(int frame, InterpolatedFrames frames, int slot, int lineWidth, int sampledStamp, double[][] pixels) {
+		
+		if(sampledStamp != stamp) {
+			return;
+		}
+		
+		rows[frame] = new Row(frames.getXPoints(slot), frames.getYPoints(slot), lineWidth, sampler.getZSlice(), sampledStamp, pixels);
+	}
+	
+	/**
+	 * Drops every row.
+	 */
+	public void clear() {
+		Arrays.fill(rows, null);
+	}
+	
+	/**
+	 * The rows of one frame and what they were sampled with.
+	 */
+	private static class Row {
+		
+		private float[] xpoints;
+		private float[] ypoints;
+		private int lineWidth;
+		private int zSlice;
+		private int stamp;
+		private double[][] pixels;
+		
+		Row(float[] xpoints, float[] ypoints, int lineWidth, int zSlice, int stamp, double[][] pixels) {
+			this.xpoints = xpoints;
+			this.ypoints = ypoints;
+			this.lineWidth = lineWidth;
+			this.zSlice = zSlice;
+			this.stamp = stamp;
+			this.pixels = pixels;
+		}
+	}
+}
@@ -0,0 +1,434 @@
+package sc.fiji;
+
+/**
+ * SamplingKernels.java
+ * Purpose: type-specialized versions of the innermost sampling and writing loops, one per pixel type (GRAY8, GRAY16, GRAY32 and RGB).
+ * Each kernel reads the backing primitive array of a frame directly and does its own bilinear interpolation, so there is no per-pixel
+ * image type check, bounds check or virtual call. The interpolation mirrors ImageProcessor.getInterpolatedValue (greyscale) and
+ * ColorProcessor.getInterpolatedRGBPixel (RGB), and the writes mirror putPixelValue/putPixel, so the results are the same as the generic path.
+ * RGB samples are averaged per channel in integer accumulators, and the average is repacked into an ARGB value (held in the double row).
+ * The greyscale kernels read raw pixel values, so they must not be used on frames with a calibration function.
+ *
+ * @version v1.6
+ */
+public final class SamplingKernels {
+	
+	private SamplingKernels() {}
+	
+	/**
+	 * Averages the samples of every shifted pass of a sampling plan on a GRAY8 frame.
+	 *
+	 * @param pixels the pixels of the frame
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param plan the sampling plan of the ROI on this frame
+	 *
+	 * @return elementwise average of the shifted passes.
+	 */
+	public static double[] averageWidth(byte[] pixels, int width, int height, SamplingPlan plan) {
+		
+		int length = plan.getLength();
+		int end = plan.getNumShifts() * length;
+		int lineWidth = plan.getLineWidth();
+		double[] xs = plan.getXs();
+		double[] ys = plan.getYs();
+		
+		double[] row = new double[length];
+		
+		for (int i = 0; i < length; i++) {
+			
+			double sum = interpolate(pixels, width, height, xs[i], ys[i]);
+			
+			for (int plus = length + i; plus < end; plus += 2 * length) {
+				int minus = plus + length;
+				sum += interpolate(pixels, width, height, xs[plus], ys[plus]) + interpolate(pixels, width, height, xs[minus], ys[minus]);
+			}
+			
+			row[i] = sum / lineWidth;
+		}
+		
+		return row;
+	}
+	
+	/**
+	 * Averages the samples of every shifted pass of a sampling plan on a GRAY16 frame.
+	 *
+	 * @param pixels the pixels of the frame
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param plan the sampling plan of the ROI on this frame
+	 *
+	 * @return elementwise average of the shifted passes.
+	 */
+	public static double[] averageWidth(short[] pixels, int width, int height, SamplingPlan plan) {
+		
+		int length = plan.getLength();
+		int end = plan.getNumShifts() * length;
+		int lineWidth = plan.getLineWidth();
+		double[] xs = plan.getXs();
+		double[] ys = plan.getYs();
+		
+		double[] row = new double[length];
+		
+		for (int i = 0; i < length; i++) {
+			
+			double sum = interpolate(pixels, width, height, xs[i], ys[i]);
+			
+			for (int plus = length + i; plus < end; plus += 2 * length) {
+				int minus = plus + length;
+				sum += interpolate(pixels, width, height, xs[plus], ys[plus]) + interpolate(pixels, width, height, xs[minus], ys[minus]);
+			}
+			
+			row[i] = sum / lineWidth;
+		}
+		
+		return row;
+	}
+	
+	/**
+	 * Averages the samples of every shifted pass of a sampling plan on a GRAY32 frame.
+	 *
+	 * @param pixels the pixels of the frame
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param plan the sampling plan of the ROI on this frame
+	 *
+	 * @return elementwise average of the shifted passes.
+	 */
+	public static double[] averageWidth(float[] pixels, int width, int height, SamplingPlan plan) {
+		
+		int length = plan.getLength();
+		int end = plan.getNumShifts() * length;
+		int lineWidth = plan.getLineWidth();
+		double[] xs = plan.getXs();
+		double[] ys = plan.getYs();
+		
+		double[] row = new double[length];
+		
+		for (int i = 0; i < length; i++) {
+			
+			double sum = interpolate(pixels, width, height, xs[i], ys[i]);
+			
+			for (int plus = length + i; plus < end; plus += 2 * length) {
+				int minus = plus + length;
+				sum += interpolate(pixels, width, height, xs[plus], ys[plus]) + interpolate(pixels, width, height, xs[minus], ys[minus]);
+			}
+			
+			row[i] = sum / lineWidth;
+		}
+		
+		return row;
+	}
+	
+	/**
+	 * Averages the samples of every shifted pass of a sampling plan on a RGB frame, channel by channel.
+	 * Each sample is unpacked once into red, green and blue integer sums. The sums are only divided and repacked at the end of the row.
+	 *
+	 * @param pixels the pixels of the frame
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param plan the sampling plan of the ROI on this frame
+	 *
+	 * @return elementwise average of the shifted passes, as ARGB values.
+	 */
+	public static double[] averageWidth(int[] pixels, int width, int height, SamplingPlan plan) {
+		
+		int length = plan.getLength();
+		int end = plan.getNumShifts() * length;
+		int lineWidth = plan.getLineWidth();
+		double[] xs = plan.getXs();
+		double[] ys = plan.getYs();
+		
+		double[] row = new double[length];
+		
+		for (int i = 0; i < length; i++) {
+			
+			int sample = interpolateRGB(pixels, width, height, xs[i], ys[i]);
+			int red = (sample >> 16) & 0xff;
+			int green = (sample >> 8) & 0xff;
+			int blue = sample & 0xff;
+			
+			for (int plus = length + i; plus < end; plus += 2 * length) {
+				int minus = plus + length;
+				int plusSample = interpolateRGB(pixels, width, height, xs[plus], ys[plus]);
+				int minusSample = interpolateRGB(pixels, width, height, xs[minus], ys[minus]);
+				
+				red += ((plusSample >> 16) & 0xff) + ((minusSample >> 16) & 0xff);
+				green += ((plusSample >> 8) & 0xff) + ((minusSample >> 8) & 0xff);
+				blue += (plusSample & 0xff) + (minusSample & 0xff);
+			}
+			
+			row[i] = averageRGB(red, green, blue, lineWidth);
+		}
+		
+		return row;
+	}
+	
+	/**
+	 * Bilinear interpolation on a GRAY8 frame. Returns 0 outside the frame (and for NaN coordinates) and clamps to the edge pixels within 1 pixel of it.
+	 */
+	static double interpolate(byte[] pixels, int width, int height, double x, double y) {
+		
+		if (x >= 0.0 && y >= 0.0 && x < width - 1.0 && y < height - 1.0) {
+			
+			int xbase = (int) x;
+			int ybase = (int) y;
+			double xFraction = x - xbase;
+			double yFraction = y - ybase;
+			int offset = ybase * width + xbase;
+			
+			double lowerLeft = pixels[offset] & 0xff;
+			double lowerRight = pixels[offset + 1] & 0xff;
+			double upperRight = pixels[offset + width + 1] & 0xff;
+			double upperLeft = pixels[offset + width] & 0xff;
+			
+			double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+			double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+			return lowerAverage + yFraction * (upperAverage - lowerAverage);
+		}
+		else if (x >= -1.0 && y >= -1.0 && x < width && y < height) {
+			
+			int xbase = (int) Math.floor(x);
+			int ybase = (int) Math.floor(y);
+			double xFraction = x - xbase;
+			double yFraction = y - ybase;
+			int x0 = clamp(xbase, width), x1 = clamp(xbase + 1, width);
+			int y0 = clamp(ybase, height) * width, y1 = clamp(ybase + 1, height) * width;
+			
+			double lowerLeft = pixels[y0 + x0] & 0xff;
+			double lowerRight = pixels[y0 + x1] & 0xff;
+			double upperRight = pixels[y1 + x1] & 0xff;
+			double upperLeft = pixels[y1 + x0] & 0xff;
+			
+			double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+			double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+			return lowerAverage + yFraction * (upperAverage - lowerAverage);
+		}
+		else {
+			return 0.0;
+		}
+	}
+	
+	/**
+	 * Bilinear interpolation on a GRAY16 frame. Returns 0 outside the frame (and for NaN coordinates) and clamps to the edge pixels within 1 pixel of it.
+	 */
+	static double interpolate(short[] pixels, int width, int height, double x, double y) {
+		
+		if (x >= 0.0 && y >= 0.0 && x < width - 1.0 && y < height - 1.0) {
+			
+			int xbase = (int) x;
+			int ybase = (int) y;
+			double xFraction = x - xbase;
+			double yFraction = y - ybase;
+			int offset = ybase * width + xbase;
+			
+			double lowerLeft = pixels[offset] & 0xffff;
+			double lowerRight = pixels[offset + 1] & 0xffff;
+			double upperRight = pixels[offset + width + 1] & 0xffff;
+			double upperLeft = pixels[offset + width] & 0xffff;
+			
+			double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+			double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+			return lowerAverage + yFraction * (upperAverage - lowerAverage);
+		}
+		else if (x >= -1.0 && y >= -1.0 && x < width && y < height) {
+			
+			int xbase = (int) Math.floor(x);
+			int ybase = (int) Math.floor(y);
+			double xFraction = x - xbase;
+			double yFraction = y - ybase;
+			int x0 = clamp(xbase, width), x1 = clamp(xbase + 1, width);
+			int y0 = clamp(ybase, height) * width, y1 = clamp(ybase + 1, height) * width;
+			
+			double lowerLeft = pixels[y0 + x0] & 0xffff;
+			double lowerRight = pixels[y0 + x1] & 0xffff;
+			double upperRight = pixels[y1 + x1] & 0xffff;
+			double upperLeft = pixels[y1 + x0] & 0xffff;
+			
+			double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+			double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+			return lowerAverage + yFraction * (upperAverage - lowerAverage);
+		}
+		else {
+			return 0.0;
+		}
+	}
+	
+	/**
+	 * Bilinear interpolation on a GRAY32 frame. Returns 0 outside the frame (and for NaN coordinates) and clamps to the edge pixels within 1 pixel of it.
+	 */
+	static double interpolate(float[] pixels, int width, int height, double x, double y) {
+		
+		if (x >= 0.0 && y >= 0.0 && x < width - 1.0 && y < height - 1.0) {
+			
+			int xbase = (int) x;
+			int ybase = (int) y;
+			double xFraction = x - xbase;
+			double yFraction = y - ybase;
+			int offset = ybase * width + xbase;
+			
+			double lowerLeft = pixels[offset];
+			double lowerRight = pixels[offset + 1];
+			double upperRight = pixels[offset + width + 1];
+			double upperLeft = pixels[offset + width];
+			
+			double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+			double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+			return lowerAverage + yFraction * (upperAverage - lowerAverage);
+		}
+		else if (x >= -1.0 && y >= -1.0 && x < width && y < height) {
+			
+			int xbase = (int) Math.floor(x);
+			int ybase = (int) Math.floor(y);
+			double xFraction = x - xbase;
+			double yFraction = y - ybase;
+			int x0 = clamp(xbase, width), x1 = clamp(xbase + 1, width);
+			int y0 = clamp(ybase, height) * width, y1 = clamp(ybase + 1, height) * width;
+			
+			double lowerLeft = pixels[y0 + x0];
+			double lowerRight = pixels[y0 + x1];
+			double upperRight = pixels[y1 + x1];
+			double upperLeft = pixels[y1 + x0];
+			
+			double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+			double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+			return lowerAverage + yFraction * (upperAverage - lowerAverage);
+		}
+		else {
+			return 0.0;
+		}
+	}
+	
+	/**
+	 * Bilinear interpolation of each channel on a RGB frame. Coordinates are clamped to the frame, and NaN coordinates give 0.
+	 *
+	 * @return the interpolated ARGB pixel
+	 */
+	static int interpolateRGB(int[] pixels, int width, int height, double x, double y) {
+		
+		if (Double.isNaN(x) || width == 1 || height == 1) {
+			return 0;
+		}
+		
+		if (x < 0.0) x = 0.0;
+		if (x >= width - 1.0) x = width - 1.001;
+		if (y < 0.0) y = 0.0;
+		if (y >= height - 1.0) y = height - 1.001;
+		
+		int xbase = (int) x;
+		int ybase = (int) y;
+		double xFraction = x - xbase;
+		double yFraction = y - ybase;
+		int offset = ybase * width + xbase;
+		
+		int lowerLeft = pixels[offset];
+		int lowerRight = pixels[offset + 1];
+		int upperRight = pixels[offset + width + 1];
+		int upperLeft = pixels[offset + width];
+		
+		int r = interpolateChannel(lowerLeft, lowerRight, upperRight, upperLeft, 16, xFraction, yFraction);
+		int g = interpolateChannel(lowerLeft, lowerRight, upperRight, upperLeft, 8, xFraction, yFraction);
+		int b = interpolateChannel(lowerLeft, lowerRight, upperRight, upperLeft, 0, xFraction, yFraction);
+		
+		return 0xff000000 | ((r & 0xff) << 16) | ((g & 0xff) << 8) | (b & 0xff);
+	}
+	
+	/**
+	 * Divides per-channel sums by the line width (rounding to the nearest value) and packs the averages into an opaque ARGB pixel.
+	 *
+	 * @param red sum of the red channel of lineWidth samples
+	 * @param green sum of the green channel of lineWidth samples
+	 * @param blue sum of the blue channel of lineWidth samples
+	 * @param lineWidth the number of samples
+	 *
+	 * @return the average ARGB pixel
+	 */
+	static int averageRGB(int red, int green, int blue, int lineWidth) {
+		
+		int half = lineWidth / 2;
+		
+		return 0xff000000 | (((red + half) / lineWidth) << 16) | (((green + half) / lineWidth) << 8) | ((blue + half) / lineWidth);
+	}
+	
+	private static int interpolateChannel(int lowerLeft, int lowerRight, int upperRight, int upperLeft, int shift, double xFraction, double yFraction) {
+		
+		int ll = (lowerLeft >> shift) & 0xff;
+		int lr = (lowerRight >> shift) & 0xff;
+		int ur = (upperRight >> shift) & 0xff;
+		int ul = (upperLeft >> shift) & 0xff;
+		
+		double upperAverage = ul + xFraction * (ur - ul);
+		double lowerAverage = ll + xFraction * (lr - ll);
+		return (int) (lowerAverage + yFraction * (upperAverage - lowerAverage) + 0.5);
+	}
+	
+	private static int clamp(int i, int size) {
+		return i <= 0 ? 0 : (i >= size ? size - 1 : i);
+	}
+	
+	/**
+	 * Writes a kymograph row into a GRAY8 kymograph, rounding and clamping like ByteProcessor.putPixelValue.
+	 *
+	 * @param kymo the pixels of the kymograph
+	 * @param offset index of the first pixel of the row
+	 * @param values the row to write
+	 * @param count number of pixels to write
+	 */
+	public static void putRow(byte[] kymo, int offset, double[] values, int count) {
+		
+		for (int i = 0; i < count; i++) {
+			double value = values[i];
+			if (value > 255.0) value = 255;
+			else if (value < 0.0) value = 0.0;
+			kymo[offset + i] = (byte) (value + 0.5);
+		}
+	}
+	
+	/**
+	 * Writes a kymograph row into a GRAY16 kymograph, rounding and clamping like ShortProcessor.putPixelValue.
+	 *
+	 * @param kymo the pixels of the kymograph
+	 * @param offset index of the first pixel of the row
+	 * @param values the row to write
+	 * @param count number of pixels to write
+	 */
+	public static void putRow(short[] kymo, int offset, double[] values, int count) {
+		
+		for (int i = 0; i < count; i++) {
+			double value = values[i];
+			if (value > 65535.0) value = 65535.0;
+			else if (value < 0.0) value = 0.0;
+			kymo[offset + i] = (short) (value + 0.5);
+		}
+	}
+	
+	/**
+	 * Writes a kymograph row into a GRAY32 kymograph.
+	 *
+	 * @param kymo the pixels of the kymograph
+	 * @param offset index of the first pixel of the row
+	 * @param values the row to write
+	 * @param count number of pixels to write
+	 */
+	public static void putRow(float[] kymo, int offset, double[] values, int count) {
+		
+		for (int i = 0; i < count; i++) {
+			kymo[offset + i] = (float) values[i];
+		}
+	}
+	
+	/**
+	 * Writes a kymograph row of ARGB values into a RGB kymograph.
+	 *
+	 * @param kymo the pixels of the kymograph
+	 * @param offset index of the first pixel of the row
+	 * @param values the row to write
+	 * @param count number of pixels to write
+	 */
+	public static void putRow(int[] kymo, int offset, double[] values, int count) {
+		
+		for (int i = 0; i < count; i++) {
+			kymo[offset + i] = (int) values[i];
+		}
+	}
+}
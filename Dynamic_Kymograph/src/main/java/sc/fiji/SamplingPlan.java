@@ -0,0 +1,247 @@
+package sc.fiji;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+/**
+ * SamplingPlan.java
+ * Purpose: the sample coordinates along one polyline ROI, for the centre line and every line width shift.
+ * Built once per ROI so that averaging over the line width does not walk the polyline again for every shift.
+ * A plan is never modified after it is built, so it can be shared between threads.
+ *
+ * @version v1.6
+ */
+public class SamplingPlan {
+	
+	private int length;	//number of samples along the polyline (length of a kymograph row before alignment)
+	private int lineWidth;
+	private int[] shifts;	//shift of each pass, in the order 0, +1, -1, +2, -2, ...
+	
+	//sample coordinates, indexed by [shiftIndex * length + sample]. NaN marks a sample that the walk never reached (read as 0)
+	private double[] xs;
+	private double[] ys;
+	
+	/**
+	 * Builds the plan for averaging over lineWidth shifts of a polyline ROI.
+	 *
+	 * @param roi the polyline ROI to walk along
+	 * @param lineWidth the line width to average over
+	 */
+	public SamplingPlan(Roi roi, int lineWidth) {
+		this(roi, lineWidthShifts(lineWidth), lineWidth);
+	}
+	
+	/**
+	 * Builds the plan for averaging over lineWidth shifts of a polyline given by integer image coordinates.
+	 *
+	 * @param x x coordinates of the polyline vertices
+	 * @param y y coordinates of the polyline vertices
+	 * @param n number of vertices
+	 * @param lineWidth the line width to average over
+	 */
+	public SamplingPlan(int[] x, int[] y, int n, int lineWidth) {
+		this(x, y, n, lineWidthShifts(lineWidth), lineWidth);
+	}
+	
+	/**
+	 * Builds the plan for averaging over lineWidth shifts of a polyline given by sub-pixel vertices in a flat buffer (see "InterpolatedFrames").
+	 * The vertices are rounded to whole pixels, the same way a PolygonRoi built from them would round them.
+	 *
+	 * @param x x coordinates of the vertices
+	 * @param y y coordinates of the vertices
+	 * @param offset index of the first vertex in x and y
+	 * @param n number of vertices
+	 * @param lineWidth the line width to average over
+	 */
+	public SamplingPlan(float[] x, float[] y, int offset, int n, int lineWidth) {
+		this(round(x, offset, n), round(y, offset, n), n, lineWidthShifts(lineWidth), lineWidth);
+	}
+	
+	private SamplingPlan(Roi roi, int[] shifts, int lineWidth) {
+		this(absoluteX(roi), absoluteY(roi), ((PolygonRoi) roi).getNCoordinates(), shifts, lineWidth);
+	}
+	
+	/***************************************************************************************
+	*    Title: MultipleKymograph_ source code (modified "getIrregularProfile" method)
+	*    Author: J. Rietdorf and A. Seitz
+	*    Date: 2008
+	*    Code version: 3.0.1
+	*    Availability: https://github.com/fiji/Multi_Kymograph/releases/tag/Multi_Kymograph-3.0.1
+	*
+	***************************************************************************************/
+	/**
+	 * Slightly modified from MultipleKymograph plugin.
+	 * Walks (from start to end) on the polyline to record the sample coordinates along the way. The segment geometry is computed once and each shift only repeats the walk.
+	 * Note implementation of "shift" is naive and is not perpendicular to polyline.
+	 */
+	private SamplingPlan(int[] x, int[] y, int n, int[] shifts, int lineWidth) {
+		
+		this.shifts = shifts;
+		this.lineWidth = lineWidth;
+		
+		double totalLength = 0.0;
+		double segmentLength;
+		int xdelta, ydelta;
+		double[] segmentLengths = new double[n];
+		int[] dx = new int[n];
+		int[] dy = new int[n];
+		for (int i=0; i<(n-1); i++) {
+			xdelta = x[i+1] - x[i];
+			ydelta = y[i+1] - y[i];
+			segmentLength = Math.sqrt(xdelta*xdelta+ydelta*ydelta);
+			totalLength += segmentLength;
+			segmentLengths[i] = segmentLength;
+			dx[i] = xdelta;
+			dy[i] = ydelta;
+		}
+		
+		length = (int) totalLength;
+		
+		xs = new double[shifts.length * length];
+		ys = new double[shifts.length * length];
+		Arrays.fill(xs, Double.NaN);
+		Arrays.fill(ys, Double.NaN);
+		
+		for (int s = 0; s < shifts.length; s++) {
+			
+			int shift = shifts[s];
+			int offset = s * length;
+			
+			double leftOver = 1.0;
+			double distance = 0.0;
+			int index;
+			
+			for (int i=0; i<n; i++) {
+				double len = segmentLengths[i];
+				if (len==0.0)
+					continue;
+				double xinc = dx[i]/len;
+				double yinc = dy[i]/len;
+				double start = 1.0-leftOver;
+				double rx = (x[i]+shift)+start*xinc;
+				double ry = (y[i]+shift)+start*yinc;
+				double len2 = len - start;
+				int n2 = (int)len2;
+				
+				for (int j=0; j<=n2; j++) {
+					index = (int)distance+j;
+					if (index<length) {
+						xs[offset + index] = rx;
+						ys[offset + index] = ry;
+					}
+					rx += xinc;
+					ry += yinc;
+				}
+				distance += len;
+				leftOver = len2 - n2;
+			}
+		}
+	}
+	
+	/**
+	 * Builds the plan for a single shift of a polyline ROI (no line width averaging).
+	 *
+	 * @param roi the polyline ROI to walk along
+	 * @param shift shifts the polyline up or down
+	 *
+	 * @return plan with one pass, shifted by shift
+	 */
+	public static SamplingPlan forShift(Roi roi, int shift) {
+		return new SamplingPlan(roi, new int[] {shift}, 1);
+	}
+	
+	/**
+	 * @return the number of samples along the polyline.
+	 */
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * @return the line width that the samples are averaged over.
+	 */
+	public int getLineWidth() {
+		return lineWidth;
+	}
+	
+	/**
+	 * @return the number of shifted passes (2 * (lineWidth / 2) + 1).
+	 */
+	public int getNumShifts() {
+		return shifts.length;
+	}
+	
+	/**
+	 * @param shiftIndex index of the pass (0 is the centre line, then +1, -1, +2, -2, ...)
+	 *
+	 * @return the shift of the pass
+	 */
+	public int getShift(int shiftIndex) {
+		return shifts[shiftIndex];
+	}
+	
+	/**
+	 * @return the x coordinates of all samples, indexed by [shiftIndex * getLength() + sample]. NaN marks a sample that was never reached. Do not modify.
+	 */
+	public double[] getXs() {
+		return xs;
+	}
+	
+	/**
+	 * @return the y coordinates of all samples, indexed by [shiftIndex * getLength() + sample]. NaN marks a sample that was never reached. Do not modify.
+	 */
+	public double[] getYs() {
+		return ys;
+	}
+	
+	/**
+	 * Lists the shifts used to implement a line width, in the order that "averageWidth" adds them up: 0, +1, -1, +2, -2, ...
+	 */
+	private static int[] lineWidthShifts(int lineWidth) {
+		
+		int halfWidth = Math.max(0, lineWidth/2);
+		int[] shifts = new int[2 * halfWidth + 1];
+		
+		for (int width = 1; width <= halfWidth; width++) {
+			shifts[2 * width - 1] = width;
+			shifts[2 * width] = -width;
+		}
+		
+		return shifts;
+	}
+	
+	private static int[] round(float[] coordinates, int offset, int n) {
+		
+		int[] rounded = new int[n];
+		
+		for (int i = 0; i < n; i++) {
+			rounded[i] = KeyFrames.round(coordinates[offset + i]);
+		}
+		return rounded;
+	}
+	
+	private static int[] absoluteX(Roi roi) {
+		
+		int[] x = ((PolygonRoi) roi).getXCoordinates().clone();
+		Rectangle r = roi.getBounds();
+		
+		for (int i = 0; i < x.length; i++) {
+			x[i] += r.x;
+		}
+		return x;
+	}
+	
+	private static int[] absoluteY(Roi roi) {
+		
+		int[] y = ((PolygonRoi) roi).getYCoordinates().clone();
+		Rectangle r = roi.getBounds();
+		
+		for (int i = 0; i < y.length; i++) {
+			y[i] += r.y;
+		}
+		return y;
+	}
+}
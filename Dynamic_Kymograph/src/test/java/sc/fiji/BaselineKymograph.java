@@ -0,0 +1,413 @@
+package sc.fiji;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.zip.GZIPOutputStream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * BaselineKymograph.java
+ * Purpose: the reference the golden kymographs are generated from, so that they do not come from the engine under test.
+ * It is the sampling path of the plugin from before the sampling and assembly code was rewritten ("getPixelsPolyline", "averageWidth", "alignPixels"
+ * and "putPixel" of the original Dynamic_Kymograph), kept as it was but for three fixes made on purpose since:
+ *
+ *     frame f is written on row f - 1 (it was written on row f, so the first row stayed empty and the last frame was dropped),
+ *     the width and anchor alignment of the kymograph are measured over every frame (they were only measured over the key frames),
+ *     RGB frames are averaged channel by channel, with rounding (the packed ARGB values were averaged as numbers).
+ *
+ * The interpolated ROIs come from "KeyFrames", whose vertices "KymographGoldenTest" checks on their own.
+ * Run it to write the golden kymographs, and only after checking that a change in output is intended.
+ *
+ * Usage: BaselineKymograph [directory]	(src/test/resources/golden by default, so run it from Dynamic_Kymograph)
+ *
+ * Golden file layout (gzipped, big-endian): int magic ("DKYG"), int version, int width, int height, int number of components,
+ * then for each component (one for greyscale, red, green and blue for RGB): float[width * height] row by row.
+ *
+ * @version v1.6
+ */
+public class BaselineKymograph {
+	
+	static final int MAGIC = 0x444B5947;	//"DKYG"
+	static final int VERSION = 1;
+	static final String EXTENSION = ".kymo.gz";
+	
+	private int imageType;
+	private int anchorID;
+	
+	/**
+	 * @param imageType GRAY8, GRAY16, GRAY32 or COLOR_RGB
+	 * @param anchorID index of the anchor vertex
+	 */
+	BaselineKymograph(int imageType, int anchorID) {
+		this.imageType = imageType;
+		this.anchorID = anchorID;
+	}
+	
+	/**
+	 * Writes the golden kymograph of every case.
+	 *
+	 * @param args the directory to write to
+	 */
+	public static void main(String[] args) {
+		
+		File directory = new File(args.length > 0 ? args[0] : "src/test/resources/golden");
+		
+		try {
+			if(!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("could not create " + directory);
+			}
+			
+			for(GoldenCase c : GoldenCase.createCases()) {
+				
+				ImageProcessor kymo = new BaselineKymograph(c.imageType, c.anchorID).assemble(c.createStack(), c.createKeyFrames(), c.lineWidth);
+				File file = new File(directory, c.name + EXTENSION);
+				
+				writeGolden(file, kymo.getWidth(), kymo.getHeight(), components(kymo));
+				System.out.println("Wrote " + file);
+			}
+		} catch (IOException e) {
+			System.err.println("BaselineKymograph error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Assembles a kymograph, as "assembleKymographInterpolate" did.
+	 *
+	 * @param stack the stack
+	 * @param keyFrames the key frames, with the anchor point set
+	 * @param lineWidth the line width to average over
+	 *
+	 * @return the kymograph: frame f on row f - 1
+	 */
+	ImageProcessor assemble(ImageStack stack, KeyFrames keyFrames, int lineWidth) {
+		
+		int numFrames = stack.getSize();
+		InterpolatedFrames frames = new InterpolatedFrames(numFrames + 1);	//frame f in slot f
+		frames.fill(keyFrames, 1, numFrames, 1);
+		
+		//find longest ROI and the ROI with the furthest distance to the anchor point
+		int kymoLength = 0;
+		int maxAnchorIndex = 0;
+		
+		for(int frame = 1; frame <= numFrames; frame++) {
+			
+			Roi roi = frames.getRoi(frame);
+			double[] pixels = averageWidth(stack.getProcessor(frame), roi, lineWidth);
+			
+			kymoLength = Math.max(kymoLength, pixels.length);
+			maxAnchorIndex = Math.max(maxAnchorIndex, anchorIndex(roi));
+		}
+		
+		ImageProcessor kymo;
+		
+		if(imageType == ImagePlus.GRAY8) {
+			kymo = new ByteProcessor(kymoLength, numFrames);
+		}
+		else if(imageType == ImagePlus.GRAY16) {
+			kymo = new ShortProcessor(kymoLength, numFrames);
+		}
+		else if(imageType == ImagePlus.GRAY32) {
+			kymo = new FloatProcessor(kymoLength, numFrames);
+		}
+		else {
+			kymo = new ColorProcessor(kymoLength, numFrames);
+		}
+		
+		//get pixels on each frame
+		for(int frame = 1; frame <= numFrames; frame++) {
+			
+			Roi currentRoi = frames.getRoi(frame);
+			
+			double[] pixels = averageWidth(stack.getProcessor(frame), currentRoi, lineWidth);
+			double[] alignedPixels = alignPixels(pixels, kymoLength, maxAnchorIndex, currentRoi);
+			
+			for(int i = 0; i < alignedPixels.length && i < kymoLength; i++) {
+				putPixel(kymo, i, frame - 1, alignedPixels[i]);
+			}
+		}
+		
+		return kymo;
+	}
+	
+	/**
+	 * Walks (from start to end) on a polyline ROI to get the pixels along the way. Slightly modified from the MultipleKymograph plugin.
+	 *
+	 * @param roi the polyline ROI to walk along
+	 * @param ip the frame that the ROI is associated with
+	 * @param shift used to implement line width. Shifts the polyline up or down
+	 *
+	 * @return Array of pixels along the ROI. Length of the array is roughly the length of the ROI.
+	 */
+	double[] getPixelsPolyline(Roi roi, ImageProcessor ip, int shift) {
+		
+		int n = ((PolygonRoi)roi).getNCoordinates();
+		int[] x = ((PolygonRoi)roi).getXCoordinates();
+		int[] y = ((PolygonRoi)roi).getYCoordinates();
+		
+		for (int i=0;i<n;i++){
+			x[i]+=shift;
+			y[i]+=shift;
+		}
+		
+		Rectangle r = roi.getBounds();
+		int xbase = r.x;
+		int ybase = r.y;
+		double length = 0.0;
+		double segmentLength;
+		int xdelta, ydelta;
+		double[] segmentLengths = new double[n];
+		int[] dx = new int[n];
+		int[] dy = new int[n];
+		for (int i=0; i<(n-1); i++) {
+			xdelta = x[i+1] - x[i];
+			ydelta = y[i+1] - y[i];
+			segmentLength = Math.sqrt(xdelta*xdelta+ydelta*ydelta);
+			length += segmentLength;
+			segmentLengths[i] = segmentLength;
+			dx[i] = xdelta;
+			dy[i] = ydelta;
+		}
+		double[] values = new double[(int)length];
+		double leftOver = 1.0;
+		double distance = 0.0;
+		int index;
+		
+		for (int i=0; i<n; i++) {
+			double len = segmentLengths[i];
+			if (len==0.0)
+				continue;
+			double xinc = dx[i]/len;
+			double yinc = dy[i]/len;
+			double start = 1.0-leftOver;
+			double rx = xbase+x[i]+start*xinc;
+			double ry = ybase+y[i]+start*yinc;
+			double len2 = len - start;
+			int n2 = (int)len2;
+			
+			for (int j=0; j<=n2; j++) {
+				index = (int)distance+j;
+				if (index<values.length)
+					values[index] = getPixel(ip, rx, ry);
+				rx += xinc;
+				ry += yinc;
+			}
+			distance += len;
+			leftOver = len2 - n2;
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * @return interpolated greyscale or ARGB pixel located at coordinates (x,y).
+	 */
+	private double getPixel(ImageProcessor ip, double x, double y) {
+		
+		if (imageType == ImagePlus.GRAY8 || imageType == ImagePlus.GRAY16 || imageType == ImagePlus.GRAY32) {
+			return ip.getInterpolatedValue(x, y);
+		}
+		else {
+			return ((ColorProcessor) ip).getInterpolatedRGBPixel(x, y);
+		}
+	}
+	
+	/**
+	 * Implements line width by averaging over multiple pixel arrays obtained by changing the "shift" parameter in "getPixelsPolyline."
+	 *
+	 * @param ip the frame
+	 * @param roi the polyline ROI to walk along
+	 * @param lineWidth the number of "shifts" to average over
+	 *
+	 * @return elementwise average of the shifted pixel arrays.
+	 */
+	double[] averageWidth(ImageProcessor ip, Roi roi, int lineWidth) {
+		
+		double[] pixels = getPixelsPolyline(roi, ip, 0);
+		
+		if (imageType == ImagePlus.GRAY8 || imageType == ImagePlus.GRAY16 || imageType == ImagePlus.GRAY32) {
+			
+			for (int width = 1; width <= lineWidth/2; width++) {
+				double[] nextShiftPlus = getPixelsPolyline(roi, ip, width);
+				double[] nextShiftMinus = getPixelsPolyline(roi, ip, -width);
+				
+				for(int i = 0; i < pixels.length; i++) {
+					pixels[i] += nextShiftPlus[i] + nextShiftMinus[i];
+				}
+			}
+			
+			for(int i = 0; i < pixels.length; i++) {
+				pixels[i] /= lineWidth;
+			}
+		}
+		else {	//channel by channel
+			
+			int[][] sums = new int[3][pixels.length];
+			addChannels(sums, pixels);
+			
+			for (int width = 1; width <= lineWidth/2; width++) {
+				addChannels(sums, getPixelsPolyline(roi, ip, width));
+				addChannels(sums, getPixelsPolyline(roi, ip, -width));
+			}
+			
+			int half = lineWidth / 2;
+			
+			for(int i = 0; i < pixels.length; i++) {
+				pixels[i] = 0xff000000 | ((sums[0][i] + half) / lineWidth) << 16 | ((sums[1][i] + half) / lineWidth) << 8 | ((sums[2][i] + half) / lineWidth);
+			}
+		}
+		
+		return pixels;
+	}
+	
+	private static void addChannels(int[][] sums, double[] argbs) {
+		
+		for(int i = 0; i < argbs.length; i++) {
+			
+			int argb = (int) argbs[i];
+			
+			sums[0][i] += (argb >> 16) & 0xff;
+			sums[1][i] += (argb >> 8) & 0xff;
+			sums[2][i] += argb & 0xff;
+		}
+	}
+	
+	/**
+	 * @return the distance along the ROI to the anchor point, in whole pixels
+	 */
+	private int anchorIndex(Roi roi) {
+		
+		Polygon roiPolygon = roi.getPolygon();
+		
+		int[] x = roiPolygon.xpoints;
+		int[] y = roiPolygon.ypoints;
+		int n = roiPolygon.npoints;
+		
+		double lengthBeforeAnchor = 0;
+		
+		for(int i = 0; i < anchorID && i < n; i++) {
+			int dx = x[i + 1] - x[i];
+			int dy = y[i + 1] - y[i];
+			lengthBeforeAnchor += Math.sqrt(dx*dx+dy*dy);
+		}
+		
+		return (int) lengthBeforeAnchor;
+	}
+	
+	/**
+	 * Aligns a slice of the kymograph based on the position of the anchor point.
+	 *
+	 * @param pixels the kymograph slice (pixels along a ROI after averaging for line width) to align
+	 * @param kymoWidth the length of the longest slice (the longest ROI) in the entire kymograph
+	 * @param indexToMatch the index of the anchor point in the pixel array of the longest kymograph slice
+	 * @param roi the ROI used for this kymograph slice
+	 *
+	 * @return a pixel array of size kymoWidth such that the anchor point of the input pixel array is aligned with indexToMatch
+	 */
+	private double[] alignPixels(double[] pixels, int kymoWidth, int indexToMatch, Roi roi) {
+		
+		double[] alignedPixels = new double[kymoWidth];
+		
+		int anchorIndex = anchorIndex(roi);
+		
+		int startIndex = 0;	//defined such that startIndex + lengthBeforeAnchor = indexToMatch so that the anchor point is aligned with the indexToMatch
+		if (indexToMatch - anchorIndex > 1) {
+			startIndex = indexToMatch - anchorIndex;
+		}
+		
+		for(int i = 0; i < pixels.length && startIndex + i < alignedPixels.length; i++) {
+			alignedPixels[startIndex + i] = pixels[i];
+		}
+		
+		return alignedPixels;
+	}
+	
+	/**
+	 * Places a pixel value (either greyscale or ARGB) at location (x,y) in the kymograph.
+	 */
+	private void putPixel(ImageProcessor ip, int x, int y, double value) {
+		
+		if (imageType == ImagePlus.GRAY8 || imageType == ImagePlus.GRAY16 || imageType == ImagePlus.GRAY32) {
+			ip.putPixelValue(x, y, value);
+		}
+		else {
+			((ColorProcessor) ip).putPixel(x, y, (int) value);
+		}
+	}
+	
+	/**
+	 * Splits a kymograph into float components: the pixel values of a greyscale kymograph, or the red, green and blue values of an RGB kymograph.
+	 *
+	 * @param kymo the kymograph
+	 *
+	 * @return the components, row by row
+	 */
+	static float[][] components(ImageProcessor kymo) {
+		
+		int width = kymo.getWidth();
+		int height = kymo.getHeight();
+		boolean rgb = kymo instanceof ColorProcessor;
+		float[][] components = new float[rgb ? 3 : 1][width * height];
+		
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				
+				if(rgb) {
+					int c = kymo.getPixel(x, y);
+					components[0][y * width + x] = (c >> 16) & 0xff;
+					components[1][y * width + x] = (c >> 8) & 0xff;
+					components[2][y * width + x] = c & 0xff;
+				}
+				else {
+					components[0][y * width + x] = kymo.getPixelValue(x, y);
+				}
+			}
+		}
+		
+		return components;
+	}
+	
+	/**
+	 * Writes a golden kymograph.
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	static void writeGolden(File file, int width, int height, float[][] components) throws IOException {
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+		
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(components.length);
+			
+			for(float[] component : components) {
+				for(float value : component) {
+					out.writeFloat(value);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
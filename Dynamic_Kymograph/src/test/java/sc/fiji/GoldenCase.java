@@ -0,0 +1,279 @@
+package sc.fiji;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * GoldenCase.java
+ * Purpose: one case of the golden kymograph test: a synthetic stack of one filament that grows and then shrinks at known rates along a known path
+ * (straight or bent, still, drifting or accelerating), traced with key frames the way a user would, interpolated linearly or along cubics.
+ *
+ * @version v1.6
+ */
+final class GoldenCase {
+	
+	static final int WIDTH = 160;
+	static final int HEIGHT = 120;
+	static final int NUM_FRAMES = 48;
+	static final int CATASTROPHE_FRAME = 28;	//the filament grows up to this frame, then shrinks
+	static final float MINUS_END = 6;	//arc length along the path where the filament starts, so the track starts a little before it
+	static final double SIGMA = 1.2;	//width of the filament profile, in pixels
+	
+	final String name;
+	final int imageType;
+	final int lineWidth;
+	final float[] pathX;	//the path the filament grows along, from before its minus end to past its longest length. Also the traced track
+	final float[] pathY;
+	final double initialLength;
+	final double growthRate;	//px/frame, up to CATASTROPHE_FRAME
+	final double shrinkageRate;	//px/frame, after CATASTROPHE_FRAME
+	final float driftX;	//px/frame, of the whole filament (and of the track traced on it)
+	final float driftY;
+	final int anchorID;
+	
+	float accelerationX = 0;	//px/frame^2, of the drift
+	float accelerationY = 0;
+	int interpolation = KeyFrames.LINEAR;
+	
+	final double background;
+	final double amplitude;
+	final double tolerance;	//largest difference allowed from the golden kymograph
+	
+	GoldenCase(String name, int imageType, int lineWidth, float[] pathX, float[] pathY, double initialLength, double growthRate, double shrinkageRate,
+			float driftX, float driftY, int anchorID) {
+		
+		this.name = name;
+		this.imageType = imageType;
+		this.lineWidth = lineWidth;
+		this.pathX = pathX;
+		this.pathY = pathY;
+		this.initialLength = initialLength;
+		this.growthRate = growthRate;
+		this.shrinkageRate = shrinkageRate;
+		this.driftX = driftX;
+		this.driftY = driftY;
+		this.anchorID = anchorID;
+		
+		switch(imageType) {
+			case ImagePlus.GRAY8:
+				background = 20;
+				amplitude = 180;
+				tolerance = 1;
+				break;
+			case ImagePlus.GRAY16:
+				background = 200;
+				amplitude = 3000;
+				tolerance = 1;
+				break;
+			case ImagePlus.GRAY32:
+				background = 0.1;
+				amplitude = 1;
+				tolerance = 1e-4;
+				break;
+			default:	//RGB: the filament is green, on a constant red background
+				background = 10;
+				amplitude = 200;
+				tolerance = 1;
+		}
+	}
+	
+	/**
+	 * Builds the cases: every image type, line widths 1 to 5, straight and bent paths, a drifting filament
+	 * traced with several key frames and an anchor point in the middle of the track, and an accelerating one interpolated along cubics.
+	 *
+	 * @return the cases
+	 */
+	static List<GoldenCase> createCases() {
+		
+		List<GoldenCase> cases = new ArrayList<GoldenCase>();
+		
+		cases.add(new GoldenCase("straight_gray32_w1", ImagePlus.GRAY32, 1, new float[] {20, 140}, new float[] {60, 60}, 30, 2.0, 3.5, 0, 0, 0));
+		cases.add(new GoldenCase("diagonal_gray16_w5", ImagePlus.GRAY16, 5, new float[] {20, 130}, new float[] {20, 100}, 30, 1.5, 3.0, 0, 0, 0));
+		cases.add(new GoldenCase("bent_gray8_w3", ImagePlus.GRAY8, 3, new float[] {15, 70, 145}, new float[] {100, 40, 50}, 20, 2.5, 4.0, 0, 0, 0));
+		cases.add(new GoldenCase("bent_rgb_w3", ImagePlus.COLOR_RGB, 3, new float[] {15, 70, 145}, new float[] {100, 40, 50}, 20, 1.0, 2.0, 0, 0, 0));
+		cases.add(new GoldenCase("drifting_gray32_w5_anchor", ImagePlus.GRAY32, 5, new float[] {15, 70, 120}, new float[] {25, 80, 70}, 25, 1.2, 2.5, 0.5f, 0.25f, 1));
+		cases.add(new GoldenCase("accelerating_gray16_w3_cubic", ImagePlus.GRAY16, 3, new float[] {15, 70, 120}, new float[] {25, 80, 70}, 20, 1.5, 3.0, 0.3f, 0.1f, 1)
+				.cubic(0.01f, 0.008f));
+		
+		return cases;
+	}
+	
+	/**
+	 * Makes the drift accelerate, and traces the filament with more key frames, interpolated along cubics.
+	 *
+	 * @param accelerationX the acceleration of the drift in x, in px/frame^2
+	 * @param accelerationY the acceleration of the drift in y, in px/frame^2
+	 *
+	 * @return this case
+	 */
+	GoldenCase cubic(float accelerationX, float accelerationY) {
+		
+		this.accelerationX = accelerationX;
+		this.accelerationY = accelerationY;
+		interpolation = KeyFrames.CUBIC;
+		
+		return this;
+	}
+	
+	/**
+	 * @return the offset in x of the filament on a frame, from the drift
+	 */
+	float offsetX(int frame) {
+		return driftX * (frame - 1) + accelerationX * (frame - 1) * (frame - 1) / 2;
+	}
+	
+	/**
+	 * @return the offset in y of the filament on a frame, from the drift
+	 */
+	float offsetY(int frame) {
+		return driftY * (frame - 1) + accelerationY * (frame - 1) * (frame - 1) / 2;
+	}
+	
+	/**
+	 * @return the length of the filament on a frame
+	 */
+	double length(int frame) {
+		
+		double longest = initialLength + growthRate * (CATASTROPHE_FRAME - 1);
+		
+		return frame <= CATASTROPHE_FRAME ? initialLength + growthRate * (frame - 1) : longest - shrinkageRate * (frame - CATASTROPHE_FRAME);
+	}
+	
+	/**
+	 * @return the stack: the filament on every frame, with a Gaussian profile across it
+	 */
+	ImageStack createStack() {
+		
+		ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		
+		for(int frame = 1; frame <= NUM_FRAMES; frame++) {
+			
+			float dx = offsetX(frame);
+			float dy = offsetY(frame);
+			double end = MINUS_END + length(frame);
+			double[] values = new double[WIDTH * HEIGHT];
+			
+			for(int y = 0; y < HEIGHT; y++) {
+				for(int x = 0; x < WIDTH; x++) {
+					double d = distanceToPath(x - dx, y - dy, MINUS_END, end);
+					values[y * WIDTH + x] = background + amplitude * Math.exp(-d * d / (2 * SIGMA * SIGMA));
+				}
+			}
+			
+			stack.addSlice(toProcessor(values));
+		}
+		
+		return stack;
+	}
+	
+	/**
+	 * @return key frames on the first and last frames, and on two frames in between if the filament drifts (three with cubic interpolation),
+	 * with the anchor point and the interpolation set
+	 */
+	KeyFrames createKeyFrames() {
+		
+		KeyFrames keyFrames = new KeyFrames();
+		keyFrames.setInterpolation(interpolation);
+		
+		int[] frames;
+		
+		if(interpolation == KeyFrames.CUBIC) {
+			frames = new int[] {1, 12, 24, 36, NUM_FRAMES};
+		}
+		else {
+			frames = driftX == 0 && driftY == 0 ? new int[] {1, NUM_FRAMES} : new int[] {1, 16, 32, NUM_FRAMES};
+		}
+		
+		for(int frame : frames) {
+			
+			float[] x = new float[pathX.length];
+			float[] y = new float[pathY.length];
+			
+			for(int i = 0; i < x.length; i++) {
+				x[i] = pathX[i] + offsetX(frame);
+				y[i] = pathY[i] + offsetY(frame);
+			}
+			
+			keyFrames.addKeyFrame(new KeyFrame(frame, x, y, x.length));
+		}
+		
+		keyFrames.updateAnchor(anchorID);
+		
+		return keyFrames;
+	}
+	
+	/**
+	 * @return the distance from (x, y) to the part of the path between arc lengths start and end
+	 */
+	double distanceToPath(double x, double y, double start, double end) {
+		
+		double distance = Double.MAX_VALUE;
+		double arc = 0;
+		
+		for(int i = 0; i < pathX.length - 1; i++) {
+			
+			double segmentX = pathX[i + 1] - pathX[i];
+			double segmentY = pathY[i + 1] - pathY[i];
+			double segmentLength = Math.sqrt(segmentX * segmentX + segmentY * segmentY);
+			
+			double from = Math.max(start, arc) - arc;	//the part of this segment the filament covers
+			double to = Math.min(end, arc + segmentLength) - arc;
+			arc += segmentLength;
+			
+			if(to <= from) {
+				continue;
+			}
+			
+			double t = ((x - pathX[i]) * segmentX + (y - pathY[i]) * segmentY) / segmentLength;	//projection on the segment
+			t = Math.max(from, Math.min(to, t));
+			
+			double nearestX = pathX[i] + segmentX * t / segmentLength;
+			double nearestY = pathY[i] + segmentY * t / segmentLength;
+			
+			distance = Math.min(distance, Math.hypot(x - nearestX, y - nearestY));
+		}
+		
+		return distance;
+	}
+	
+	private ImageProcessor toProcessor(double[] values) {
+		
+		int size = values.length;
+		
+		switch(imageType) {
+			case ImagePlus.GRAY8:
+				byte[] bytes = new byte[size];
+				for(int i = 0; i < size; i++) {
+					bytes[i] = (byte) Math.round(values[i]);
+				}
+				return new ByteProcessor(WIDTH, HEIGHT, bytes);
+			case ImagePlus.GRAY16:
+				short[] shorts = new short[size];
+				for(int i = 0; i < size; i++) {
+					shorts[i] = (short) Math.round(values[i]);
+				}
+				return new ShortProcessor(WIDTH, HEIGHT, shorts, null);
+			case ImagePlus.GRAY32:
+				float[] floats = new float[size];
+				for(int i = 0; i < size; i++) {
+					floats[i] = (float) values[i];
+				}
+				return new FloatProcessor(WIDTH, HEIGHT, floats, null);
+			default:
+				int[] ints = new int[size];
+				for(int i = 0; i < size; i++) {
+					ints[i] = 0xff000000 | (30 << 16) | ((int) Math.round(values[i]) << 8);
+				}
+				return new ColorProcessor(WIDTH, HEIGHT, ints);
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package sc.fiji;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import java.util.zip.GZIPInputStream;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.process.ImageProcessor;
+
+/**
+ * KymographGoldenTest.java
+ * Purpose: headless regression test of the kymograph pipeline (interpolation, sampling, line width averaging, alignment and writing), without AWT.
+ * For each case (see "GoldenCase"), the kymograph is assembled serially, in parallel and streaming, and each must match the golden kymograph of the case
+ * within a tolerance, so a rewrite of the sampling or assembly code cannot silently change the output.
+ * The golden kymographs are read from the classpath (src/test/resources/golden), and are written by "BaselineKymograph", not by the engine under test.
+ * The serial kymograph must also show the known growth and shrinkage rates, so the golden kymographs themselves are right.
+ *
+ * @version v1.6
+ */
+@RunWith(Parameterized.class)
+public class KymographGoldenTest {
+	
+	static final double RATE_TOLERANCE = 0.05;	//relative error allowed on the measured rates
+	static final int RATE_MARGIN = 2;	//frames left out of the rate fit around the catastrophe
+	
+	static final String[] ENGINES = {"serial", "parallel", "streaming"};
+	
+	private GoldenCase c;
+	
+	/**
+	 * @return the cases, with their names
+	 */
+	@Parameters(name = "{0}")
+	public static List<Object[]> cases() {
+		
+		List<Object[]> cases = new ArrayList<Object[]>();
+		
+		for(GoldenCase c : GoldenCase.createCases()) {
+			cases.add(new Object[] {c.name, c});
+		}
+		
+		return cases;
+	}
+	
+	/**
+	 * @param name the name of the case
+	 * @param c the case
+	 */
+	public KymographGoldenTest(String name, GoldenCase c) {
+		this.c = c;
+	}
+	
+	@BeforeClass
+	public static void quietLog() {
+		KymographLog.setLevel(KymographLog.OFF);
+	}
+	
+	/**
+	 * On a key frame, the interpolated vertices must be the key frame's exactly.
+	 * Between two key frames, each coordinate must stay between its values on the two key frames (no overshoot, with linear or cubic interpolation).
+	 */
+	@Test
+	public void interpolationStaysBetweenKeyFrames() {
+		
+		KeyFrames keyFrames = c.createKeyFrames();
+		InterpolatedFrames frames = new InterpolatedFrames(GoldenCase.NUM_FRAMES + 1);	//frame f in slot f
+		frames.fill(keyFrames, 1, GoldenCase.NUM_FRAMES, 1);
+		
+		for(int index = 0; index < keyFrames.size(); index++) {
+			
+			int keyFrame = keyFrames.getFrame(index);
+			
+			assertTrue("interpolated vertices differ from the key frame on frame " + keyFrame,
+					frames.sameVertices(keyFrame, keyFrames.getXPoints(index), keyFrames.getYPoints(index)));
+			
+			if(index == keyFrames.size() - 1) {
+				break;
+			}
+			
+			for(int frame = keyFrame + 1; frame < keyFrames.getFrame(index + 1); frame++) {
+				assertFalse("interpolated vertices overshoot the key frames on frame " + frame,
+						overshoots(frames.getXPoints(frame), keyFrames.getXPoints(index), keyFrames.getXPoints(index + 1))
+						|| overshoots(frames.getYPoints(frame), keyFrames.getYPoints(index), keyFrames.getYPoints(index + 1)));
+			}
+		}
+	}
+	
+	/**
+	 * Every engine must match the golden kymograph of the case.
+	 *
+	 * @throws IOException if the golden kymograph cannot be read
+	 */
+	@Test
+	public void everyEngineMatchesGolden() throws IOException {
+		
+		ImageStack stack = c.createStack();
+		KeyFrames keyFrames = c.createKeyFrames();
+		
+		for(int e = 0; e < ENGINES.length; e++) {
+			
+			ImageProcessor kymo = assemble(stack, keyFrames, e);
+			float[][] components = BaselineKymograph.components(kymo);
+			float[][] golden = readGolden(kymo.getWidth(), kymo.getHeight(), components.length);
+			
+			double maxError = maxError(components, golden);
+			
+			assertTrue(String.format(Locale.ROOT, "%s differs from golden by up to %.4g (tolerance %.4g)", ENGINES[e], maxError, c.tolerance), maxError <= c.tolerance);
+		}
+	}
+	
+	/**
+	 * Every frame must have its row (frame f on row f - 1), with the filament on it. The growth and shrinkage rates fitted to the length of the filament
+	 * on every row (from its half-maximum ends) must be the known rates.
+	 */
+	@Test
+	public void kymographShowsKnownRates() {
+		
+		ImageProcessor kymo = assemble(c.createStack(), c.createKeyFrames(), 0);
+		
+		assertEquals("one row per frame", GoldenCase.NUM_FRAMES, kymo.getHeight());
+		
+		double[] lengths = new double[GoldenCase.NUM_FRAMES + 1];
+		double half = c.background + c.amplitude / 2;
+		
+		for(int frame = 1; frame <= GoldenCase.NUM_FRAMES; frame++) {
+			
+			int row = frame - 1;
+			double[] profile = new double[kymo.getWidth()];
+			
+			for(int x = 0; x < profile.length; x++) {
+				profile[x] = c.imageType == ImagePlus.COLOR_RGB ? (kymo.getPixel(x, row) >> 8) & 0xff : kymo.getPixelValue(x, row);
+			}
+			
+			lengths[frame] = halfMaximumLength(profile, half);
+			
+			assertFalse("no filament on the row of frame " + frame, Double.isNaN(lengths[frame]));
+		}
+		
+		double growth = slope(lengths, 1 + RATE_MARGIN, GoldenCase.CATASTROPHE_FRAME - RATE_MARGIN);
+		double shrinkage = -slope(lengths, GoldenCase.CATASTROPHE_FRAME + RATE_MARGIN, GoldenCase.NUM_FRAMES);
+		
+		assertEquals("growth rate (px/frame)", c.growthRate, growth, RATE_TOLERANCE * c.growthRate);
+		assertEquals("shrinkage rate (px/frame)", c.shrinkageRate, shrinkage, RATE_TOLERANCE * c.shrinkageRate);
+	}
+	
+	/**
+	 * Helper method. Assembles the kymograph of the case with one of the engines.
+	 *
+	 * @param stack the stack of the case
+	 * @param keyFrames the key frames of the case
+	 * @param engine 0 for serial, 1 for parallel, 2 for streaming
+	 *
+	 * @return the kymograph
+	 */
+	private ImageProcessor assemble(ImageStack stack, KeyFrames keyFrames, int engine) {
+		
+		KymographAssembler assembler = new KymographAssembler(new KymographSampler(stack, c.imageType, null), keyFrames, null);
+		assembler.setLineWidth(c.lineWidth);
+		assembler.setNumThreads(engine == 0 ? 1 : 4);
+		assembler.setStreaming(engine == 2);
+		
+		return assembler.assemble().getProcessor(1);
+	}
+	
+	/**
+	 * @return true if any of the coordinates is outside the range of the coordinates of the same vertex on the two key frames
+	 */
+	private static boolean overshoots(float[] coordinates, float[] before, float[] after) {
+		
+		for(int i = 0; i < coordinates.length; i++) {
+			if(coordinates[i] < Math.min(before[i], after[i]) || coordinates[i] > Math.max(before[i], after[i])) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @param profile the samples along one row of the kymograph
+	 * @param half the half-maximum level
+	 *
+	 * @return the distance between the first and last half-maximum crossings (to sub-pixel precision), or NaN if the filament is not found
+	 */
+	static double halfMaximumLength(double[] profile, double half) {
+		
+		int first = -1;
+		int last = -1;
+		
+		for(int x = 0; x < profile.length; x++) {
+			if(profile[x] > half) {
+				if(first < 0) {
+					first = x;
+				}
+				last = x;
+			}
+		}
+		
+		if(first <= 0 || last >= profile.length - 1) {
+			return Double.NaN;	//no filament, or it runs off the track
+		}
+		
+		double start = first - (profile[first] - half) / (profile[first] - profile[first - 1]);
+		double end = last + (profile[last] - half) / (profile[last] - profile[last + 1]);
+		
+		return end - start;
+	}
+	
+	/**
+	 * @return the least-squares slope of values[from..to] against their index
+	 */
+	static double slope(double[] values, int from, int to) {
+		
+		int n = to - from + 1;
+		double sumX = 0;
+		double sumY = 0;
+		double sumXY = 0;
+		double sumXX = 0;
+		
+		for(int x = from; x <= to; x++) {
+			sumX += x;
+			sumY += values[x];
+			sumXY += x * values[x];
+			sumXX += (double) x * x;
+		}
+		
+		return (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+	}
+	
+	private static double maxError(float[][] components, float[][] golden) {
+		
+		double maxError = 0;
+		
+		for(int c = 0; c < components.length; c++) {
+			for(int i = 0; i < components[c].length; i++) {
+				maxError = Math.max(maxError, Math.abs(components[c][i] - golden[c][i]));
+			}
+		}
+		
+		return maxError;
+	}
+	
+	/**
+	 * Helper method. Reads the golden kymograph of the case from the classpath.
+	 *
+	 * @param width the width of the kymograph it must match
+	 * @param height the height of the kymograph it must match
+	 * @param numComponents the number of components it must have
+	 *
+	 * @return the components
+	 *
+	 * @throws IOException if the golden kymograph cannot be read
+	 */
+	private float[][] readGolden(int width, int height, int numComponents) throws IOException {
+		
+		String resource = "/golden/" + c.name + BaselineKymograph.EXTENSION;
+		InputStream stream = KymographGoldenTest.class.getResourceAsStream(resource);
+		
+		assertNotNull("no golden kymograph " + resource + " (run BaselineKymograph to create it)", stream);
+		
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(stream)));
+		
+		try {
+			if(in.readInt() != BaselineKymograph.MAGIC || in.readInt() != BaselineKymograph.VERSION) {
+				fail(resource + " is not a golden kymograph");
+			}
+			
+			int goldenWidth = in.readInt();
+			int goldenHeight = in.readInt();
+			int goldenComponents = in.readInt();
+			
+			if(goldenWidth != width || goldenHeight != height || goldenComponents != numComponents) {
+				fail(String.format(Locale.ROOT, "kymograph is %d x %d x %d, golden is %d x %d x %d", width, height, numComponents, goldenWidth, goldenHeight, goldenComponents));
+			}
+			
+			float[][] golden = new float[numComponents][width * height];
+			
+			for(float[] component : golden) {
+				for(int i = 0; i < component.length; i++) {
+					component[i] = in.readFloat();
+				}
+			}
+			
+			return golden;
+		} finally {
+			in.close();
+		}
+	}
+}